@@ -0,0 +1,189 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * The on-disk format of a snapshot of the DNSCache, used to restart with a warm cache. Records are stored in the DNS
+ * wire format, encoded and decoded by DNSMessage, so names are compressed and no Java serialization is involved:
+ *
+ * <pre>
+ *     magic ("DNSC", 4 bytes), version (4 bytes), time of the snapshot (8 bytes, milliseconds since the epoch)
+ *     any number of messages, each preceded by its two-byte length, as over TCP, with the records in the answer section
+ * </pre>
+ *
+ * The TTL of each record is relative to the time of the snapshot, so the absolute expiration time of the records is
+ * restored, to the second, however long after the snapshot it is loaded. Snapshots are written to a temporary file
+ * that replaces the previous snapshot only once it is complete, and are read through a memory-mapped buffer, decoding
+ * the messages in place.
+ */
+class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Reads a snapshot, passing each record that has not expired yet to the consumer, with its original expiration
+     * time.
+     *
+     * @param file     The snapshot file.
+     * @param consumer Called with each record.
+     * @return The number of records passed to the consumer.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    static int read(Path file, Consumer<ResourceRecord> consumer) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (data.remaining() < HEADER_LENGTH || data.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot: " + file);
+            int version = data.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported cache snapshot version " + version + ": " + file);
+            long savedAt = data.getLong();
+            int count = 0;
+            while (data.hasRemaining()) {
+                int length = data.getShort() & 0xFFFF;
+                ByteBuffer slice = data.slice();
+                slice.limit(length);
+                data.position(data.position() + length);
+                DNSMessage message = new DNSMessage(slice);
+                // Decoded records expire TTL seconds after they are decoded, instead of after the snapshot
+                long now = System.currentTimeMillis();
+                long skew = now - savedAt;
+                for (int i = message.getANCount(); i > 0; i--) {
+                    ResourceRecord record = message.getRR();
+                    long expirationTime = record.getExpirationTime() - skew;
+                    if (expirationTime > now) {
+                        consumer.accept(record.withExpirationTime(expirationTime));
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                 | DNSMessage.MalformedMessageException e) {
+            throw new IOException("Corrupted cache snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Starts writing a snapshot taken at the given time. The snapshot replaces the file only when the writer is
+     * committed.
+     *
+     * @param file    The snapshot file.
+     * @param savedAt The time of the snapshot, in milliseconds since the epoch.
+     * @return A writer for the records of the snapshot.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    static Writer create(Path file, long savedAt) throws IOException {
+        return new Writer(file, savedAt);
+    }
+
+    /**
+     * Writes the records of a snapshot to a temporary file, and replaces the snapshot file with it when committed.
+     */
+    static class Writer implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final DNSMessage message = new DNSMessage((short) 0, MAX_MESSAGE_LENGTH);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private int count;
+        private boolean committed;
+
+        private Writer(Path file, long savedAt) throws IOException {
+            this.file = file;
+            Path directory = file.toAbsolutePath().getParent();
+            this.temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(savedAt).flip();
+            write(header);
+        }
+
+        /**
+         * Adds a record to the snapshot. Records whose result cannot be encoded in the wire format are skipped.
+         */
+        void add(ResourceRecord record) throws IOException {
+            int position = message.getPosition();
+            int answers = message.getANCount();
+            try {
+                message.addResourceRecord(record, "answer");
+            } catch (BufferOverflowException e) {
+                // The message is full: it is written without this record, which starts the next message. The names of
+                // the record may already be in the compression table, pointing past the end of the message, so the
+                // message must be reset, not only rolled back, before anything else is added to it.
+                message.setPosition(position);
+                if (answers == 0) {
+                    // Too large for any message, and the message holds nothing else
+                    message.reset((short) 0);
+                    return;
+                }
+                flush();
+                add(record);
+                return;
+            }
+            if (message.getANCount() > answers)
+                count++;
+        }
+
+        /**
+         * Returns the number of records added so far.
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Writes the remaining records, and atomically replaces the snapshot file with this snapshot.
+         */
+        void commit() throws IOException {
+            flush();
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Discards the snapshot if it was not committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            channel.close();
+            Files.deleteIfExists(temporary);
+        }
+
+        private void flush() throws IOException {
+            if (message.getANCount() == 0) return;
+            header.clear();
+            header.putShort((short) message.getPosition()).flip();
+            write(header);
+            write(message.getEncoded());
+            message.reset((short) 0);
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * The records the cache holds for a question, as an unmodifiable list. An empty list means either that nothing is
+ * known about the question, or that a negative answer is cached for it; isNegative() tells the two apart, so that a
+ * name known not to exist is not looked up again until the negative answer expires.
+ * <p>
+ * The list is a view of an array of records that is never modified, starting at an offset and wrapping around its end,
+ * so the cache can hand out the same records in a different order (round-robin) without copying them.
+ */
+public final class CachedResults extends AbstractList<ResourceRecord> implements RandomAccess {
+
+    /** The results for a question the cache knows nothing about. */
+    static final CachedResults UNKNOWN = new CachedResults(new ResourceRecord[0], 0, null);
+
+    private final ResourceRecord[] records;
+    private final int offset;
+    private final NegativeAnswer negative;
+
+    private CachedResults(ResourceRecord[] records, int offset, NegativeAnswer negative) {
+        this.records = records;
+        this.offset = offset;
+        this.negative = negative;
+    }
+
+    static CachedResults of(List<ResourceRecord> records) {
+        return records.isEmpty() ? UNKNOWN : new CachedResults(records.toArray(new ResourceRecord[0]), 0, null);
+    }
+
+    /**
+     * Returns a view of the records starting at the given offset. The array is not copied, so it must not be
+     * modified afterwards.
+     */
+    static CachedResults of(ResourceRecord[] records, int offset) {
+        return records.length == 0 ? UNKNOWN : new CachedResults(records, offset, null);
+    }
+
+    static CachedResults of(NegativeAnswer negative) {
+        return new CachedResults(UNKNOWN.records, 0, negative);
+    }
+
+    /**
+     * Returns the records of both results, in their order, the first ones first.
+     */
+    static CachedResults concat(CachedResults first, CachedResults second) {
+        ResourceRecord[] records = new ResourceRecord[first.size() + second.size()];
+        first.copyTo(records, 0);
+        second.copyTo(records, first.size());
+        return of(records, 0);
+    }
+
+    private void copyTo(ResourceRecord[] target, int position) {
+        int head = records.length - offset;
+        System.arraycopy(records, offset, target, position, head);
+        System.arraycopy(records, 0, target, position + head, offset);
+    }
+
+    @Override
+    public ResourceRecord get(int index) {
+        Objects.checkIndex(index, records.length);
+        int i = offset + index;
+        return records[i < records.length ? i : i - records.length];
+    }
+
+    @Override
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * Returns true if there are no records because a negative answer is cached for the question.
+     */
+    public boolean isNegative() {
+        return negative != null;
+    }
+
+    /**
+     * Returns the cached negative answer for the question, or null if there is none.
+     */
+    public NegativeAnswer getNegativeAnswer() {
+        return negative;
+    }
+}
@@ -0,0 +1,52 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that is read far more often than it needs to be precise. A single daemon thread refreshes the time every
+ * RESOLUTION_MILLIS, so reading it is a volatile read instead of a system call. The same thread runs periodic
+ * maintenance tasks, such as the DNSCache expiry sweeper.
+ */
+final class CoarseClock {
+
+    /** How often the time is refreshed, which is also how far behind the real time now() can be. */
+    static final long RESOLUTION_MILLIS = 100;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "dns-coarse-clock");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        scheduler.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), RESOLUTION_MILLIS, RESOLUTION_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * Returns the current time in milliseconds since the epoch, at most RESOLUTION_MILLIS old.
+     */
+    static long now() {
+        return now;
+    }
+
+    /**
+     * Runs a task periodically on the clock thread. Tasks must be short, and should not throw exceptions, since an
+     * exception cancels later runs.
+     *
+     * @param task         The task to run.
+     * @param periodMillis The time between runs, in milliseconds.
+     * @return The future that can be used to cancel the task.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long periodMillis) {
+        return scheduler.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
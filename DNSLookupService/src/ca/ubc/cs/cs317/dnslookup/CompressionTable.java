@@ -0,0 +1,135 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+
+/**
+ * Remembers every name suffix written to a message, so later names can be compressed with a pointer to the longest
+ * suffix they share with a name already in the message.
+ * <p>
+ * Suffixes are kept as a trie of labels read from right to left: the node for "cs.ubc.ca" is the child of the node for
+ * "ubc.ca" with label "cs". A node only stores its parent and the offset in the message where its label was written,
+ * so labels are compared against the message itself and no Strings are created. Children are found through a single
+ * open-addressing hash table keyed on (parent, label).
+ */
+class CompressionTable {
+
+    /** Largest offset that can be the target of a compression pointer (14 bits). */
+    static final int MAX_POINTER_OFFSET = 0x3FFF;
+    /** Node number used for the root (empty name), which is the parent of all top-level labels. */
+    static final int ROOT = -1;
+
+    private int[] parents = new int[16];
+    private int[] offsets = new int[16];
+    private int[] hashes = new int[16];
+    private int size;
+    // Node number + 1 for each slot, 0 for an empty slot; always at most half full
+    private int[] slots = new int[32];
+    // The last name added and its node, since records of the same RRset repeat the same owner name
+    private DomainName lastName;
+    private int lastNode;
+
+    /**
+     * Forgets all suffixes, keeping the allocated tables.
+     */
+    void clear() {
+        if (size > 0) Arrays.fill(slots, 0);
+        size = 0;
+        lastName = null;
+    }
+
+    /**
+     * Returns the node of a complete name if it is the last name passed to remember(), or
+     * -1 otherwise. This is only a shortcut: find() would reach the same node one label at a time.
+     */
+    int findLast(DomainName name) {
+        return name == lastName ? lastNode : -1;
+    }
+
+    /**
+     * Remembers the node for a complete name, for findLast().
+     */
+    void remember(DomainName name, int node) {
+        lastName = name;
+        lastNode = node;
+    }
+
+    /**
+     * Finds the node for the suffix made of a label followed by the suffix of node parent.
+     *
+     * @param message The array backing the message the suffixes were written to.
+     * @param parent  The node of the rest of the suffix, or ROOT.
+     * @param label   Array containing the label, in wire format (length byte followed by the characters).
+     * @param start   Position of the length byte of the label in the array.
+     * @param labelHash Hash of the label, computed by the caller in any way that gives equal labels equal hashes.
+     * @return The node number, or -1 if this suffix has not been written yet.
+     */
+    int find(byte[] message, int parent, byte[] label, int start, int labelHash) {
+        int hash = hash(parent, labelHash);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int node = slots[slot] - 1;
+            if (hashes[node] == hash && parents[node] == parent && sameLabel(message, offsets[node], label, start))
+                return node;
+        }
+        return -1;
+    }
+
+    /**
+     * Records that the suffix made of a label followed by the suffix of node parent was written at offset.
+     *
+     * @param parent The node of the rest of the suffix, or ROOT.
+     * @param labelHash Hash of the label, as given to find().
+     * @param offset Position in the message where the label was written.
+     * @return The number of the new node.
+     */
+    int add(int parent, int labelHash, int offset) {
+        if (size == parents.length) {
+            parents = Arrays.copyOf(parents, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        if (2 * (size + 1) > slots.length)
+            rehash(slots.length * 2);
+        int node = size++;
+        parents[node] = parent;
+        offsets[node] = offset;
+        hashes[node] = hash(parent, labelHash);
+        insert(node);
+        return node;
+    }
+
+    /**
+     * Returns the offset in the message of the suffix represented by a node, i.e., the pointer target.
+     */
+    int offset(int node) {
+        return offsets[node];
+    }
+
+    private void insert(int node) {
+        int mask = slots.length - 1;
+        int slot = hashes[node] & mask;
+        while (slots[slot] != 0)
+            slot = (slot + 1) & mask;
+        slots[slot] = node + 1;
+    }
+
+    private void rehash(int length) {
+        slots = new int[length];
+        for (int node = 0; node < size; node++)
+            insert(node);
+    }
+
+    private static int hash(int parent, int labelHash) {
+        int hash = labelHash * 0x9E3779B9 + parent;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameLabel(byte[] data, int offset, byte[] label, int start) {
+        int length = label[start];
+        if (data[offset] != length) return false;
+        for (int i = 1; i <= length; i++) {
+            if (data[offset + i] != label[start + i]) return false;
+        }
+        return true;
+    }
+}
@@ -1,7 +1,19 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -9,22 +21,99 @@ import java.util.stream.Stream;
  * This class handles a cache of DNS results. It is based on a map that links nodes (queries) to a set of resource
  * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
  * server, and are deleted before being returned to the user.
+ * <p>
+ * The cache is safe to use from multiple threads. The map is a ConcurrentHashMap and each set of records is immutable:
+ * reads never lock nor modify anything, and adding a record atomically replaces the set for its question with a new
+ * set.
+ * <p>
+ * Reads compare expiration times against the CoarseClock instead of reading the system clock. Expired records are
+ * removed in the background: every set is scheduled in a TimingWheel for the earliest expiration time of its records,
+ * and the sweeper, run every tick on the clock thread, removes the expired records of the sets that are due. Records
+ * are therefore reclaimed even for names that are never queried again.
+ * <p>
+ * The cache can be given a capacity, in records or in estimated bytes. A bounded cache evicts record sets using a
+ * W-TinyLFU policy, so a burst of names that are looked up only once (e.g., a bulk scan) does not flush the names in
+ * frequent use. The root nameservers are pinned: they are never evicted and do not count towards the capacity. Changes
+ * to a bounded cache (adding records, sweeping) are serialized by a lock shared with the policy; reads still never
+ * block, and only reorder the policy's queues if the lock happens to be free.
+ * <p>
+ * Negative answers (NXDOMAIN and NODATA, RFC 2308) are cached in the same map, as a record set without records that
+ * holds the NegativeAnswer. They expire, are swept and are evicted like any other set, and are replaced as soon as a
+ * record is added for their question.
+ * <p>
+ * With refresh-ahead enabled, a record set that has been read often enough and is read again in the last part of its
+ * TTL is handed to a refresher (e.g., a background lookup), so that it is replaced before it expires and popular names
+ * never miss. A question is refreshed at most once at a time.
+ * <p>
+ * With a stale window (RFC 8767), expired records are only removed once they have been expired for that long. They
+ * are never returned by getCachedResults, but getStaleResults returns them, with a short TTL, for when the nameservers
+ * cannot provide fresh ones in time.
+ * <p>
+ * The zones that have NS records in the cache are indexed in a DelegationIndex, so that a lookup can start at the
+ * nameservers of the deepest zone known to enclose a name, instead of at the root (see getClosestNameServer).
+ * <p>
+ * The records can be saved to a snapshot file and loaded back (see CacheSnapshot), so a restarted resolver does not
+ * start with a cold cache.
  */
 public class DNSCache {
 
-    public static final DNSQuestion rootQuestion = new DNSQuestion("", RecordType.NS, RecordClass.IN);
-    private static final Set<ResourceRecord> rootNameServersMap = Stream.of("198.41.0.4",
+    /** The TTL of stale records returned by getStaleResults, in seconds, as recommended by RFC 8767. */
+    public static final int STALE_TTL = 30;
+
+    public static final DNSQuestion rootQuestion = new DNSQuestion(DomainName.ROOT, RecordType.NS, RecordClass.IN);
+    private static final RecordSet rootNameServers = RecordSet.of(Stream.of("198.41.0.4",
                     "199.9.14.201", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4",
                     "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33")
             .map(s -> new ResourceRecord(rootQuestion, Integer.MAX_VALUE, s))
-            .collect(Collectors.toSet());
+            .collect(Collectors.toList()));
 
     private static final DNSCache instance = new DNSCache();
 
-    private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new TreeMap<>();
+    /**
+     * The unit in which the capacity of the cache is given.
+     */
+    public enum Unit {
+        /** The number of resource records. */
+        RECORDS,
+        /** An estimate of the heap used by the records and the structures holding them. */
+        BYTES
+    }
+
+    private final Map<DNSQuestion, RecordSet> cachedResults = new ConcurrentHashMap<>();
+    private final TimingWheel<DNSQuestion> expirations = new TimingWheel<>(System.currentTimeMillis());
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile TinyLfuPolicy<DNSQuestion> policy; // null if the cache is unbounded
+    private volatile Unit unit = Unit.RECORDS;
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedRecords = new LongAdder();
+    private volatile RefreshAhead refreshAhead; // null if disabled
+    private final Set<DNSQuestion> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshes = new LongAdder();
+    private volatile long staleWindow; // in milliseconds, 0 if serve-stale is disabled
+    private Object staleWindowOwner; // who set the stale window, if anyone in particular; guarded by lock
+    private final DelegationIndex delegations = new DelegationIndex();
+
+    private static final AtomicReferenceFieldUpdater<DNSCache, RefreshAhead> REFRESH_AHEAD =
+            AtomicReferenceFieldUpdater.newUpdater(DNSCache.class, RefreshAhead.class, "refreshAhead");
 
+    /**
+     * Creates an unbounded cache.
+     */
     public DNSCache() {
         reset();
+        Sweeper sweeper = new Sweeper(this);
+        sweeper.future = CoarseClock.schedule(sweeper, TimingWheel.TICK_MILLIS);
+    }
+
+    /**
+     * Creates a cache that holds at most the given capacity.
+     *
+     * @param capacity The maximum number of records or estimated bytes, depending on the unit.
+     * @param unit     The unit of the capacity.
+     */
+    public DNSCache(long capacity, Unit unit) {
+        this();
+        setCapacity(capacity, unit);
     }
 
     /**
@@ -41,15 +130,209 @@ public class DNSCache {
      * Resets the cache to its initial value, containing only root nameservers.
      */
     public void reset() {
-        this.cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersMap);
+        lock.lock();
+        try {
+            this.cachedResults.clear();
+            this.cachedResults.put(rootQuestion, rootNameServers);
+            this.delegations.clear();
+            if (policy != null) policy.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the capacity of the cache, evicting record sets immediately if it is already over the new capacity.
+     *
+     * @param capacity The maximum number of records or estimated bytes, depending on the unit; Long.MAX_VALUE for an
+     *                 unbounded cache.
+     * @param unit     The unit of the capacity.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public void setCapacity(long capacity, Unit unit) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        lock.lock();
+        try {
+            this.unit = unit;
+            if (capacity == Long.MAX_VALUE) {
+                policy = null;
+                return;
+            }
+            TinyLfuPolicy<DNSQuestion> bounded = new TinyLfuPolicy<>(capacity,
+                    unit == Unit.RECORDS ? capacity : capacity / RecordSet.ESTIMATED_BYTES_PER_RECORD);
+            cachedResults.forEach((question, set) -> {
+                if (!rootQuestion.equals(question))
+                    bounded.recordWrite(question, weight(set), this::evict);
+            });
+            policy = bounded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of record sets (all the records for one question) evicted to respect the capacity.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of records evicted to respect the capacity.
+     */
+    public long getEvictedRecordCount() {
+        return evictedRecords.sum();
+    }
+
+    /**
+     * Enables refresh-ahead: when a record set that was read at least minHits times since it last changed is read
+     * with less than the given fraction of its TTL left, its question is passed to the refresher, which should
+     * resolve it again in the background and add the new records to this cache. The TTL of a set is measured from the
+     * last time it changed, so the refresh always happens before its earliest record expires, but may happen later
+     * than the exact fraction of that record's original TTL.
+     *
+     * @param fraction  The fraction of the TTL, between 0 and 1, left when a refresh is started (e.g., 0.1).
+     * @param minHits   The number of reads of a set before it is worth refreshing.
+     * @param refresher Starts the refresh of a question, and returns a stage that completes when it is done. Null
+     *                  disables refresh-ahead.
+     * @throws IllegalArgumentException If the fraction is not between 0 and 1, or minHits is not positive.
+     */
+    public void setRefreshAhead(double fraction, int minHits,
+                                Function<DNSQuestion, ? extends CompletionStage<?>> refresher) {
+        if (refresher == null) {
+            refreshAhead = null;
+            return;
+        }
+        if (!(fraction > 0 && fraction < 1))
+            throw new IllegalArgumentException("Invalid refresh fraction: " + fraction);
+        if (minHits <= 0)
+            throw new IllegalArgumentException("Invalid number of hits: " + minHits);
+        refreshAhead = new RefreshAhead(fraction, minHits, refresher);
+    }
+
+    /**
+     * Disables refresh-ahead if it still uses the given refresher, i.e., unless it was changed since, e.g., by another
+     * lookup service sharing this cache.
+     *
+     * @param refresher The refresher passed to setRefreshAhead.
+     * @return true if refresh-ahead was disabled.
+     */
+    public boolean disableRefreshAhead(Function<DNSQuestion, ? extends CompletionStage<?>> refresher) {
+        RefreshAhead current = refreshAhead;
+        while (current != null && current.refresher == refresher) {
+            if (REFRESH_AHEAD.compareAndSet(this, current, null))
+                return true;
+            current = refreshAhead;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if refresh-ahead is enabled.
+     */
+    public boolean isRefreshAheadEnabled() {
+        return refreshAhead != null;
+    }
+
+    /**
+     * Sets how long expired records are kept for getStaleResults. Records that expired before the window changed are
+     * kept or removed according to the new window, at their next sweep.
+     *
+     * @param seconds The stale window, in seconds; 0 to remove records as soon as they expire.
+     * @throws IllegalArgumentException If the window is negative.
+     */
+    public void setStaleWindow(long seconds) {
+        setStaleWindow(seconds, null);
+    }
+
+    /**
+     * Sets the stale window on behalf of an owner, e.g., the lookup service that enabled serve-stale, which can later
+     * disable it with disableStaleWindow, unless the window was set again since.
+     *
+     * @param seconds The stale window, in seconds; 0 to remove records as soon as they expire.
+     * @param owner   The owner of the new window.
+     * @throws IllegalArgumentException If the window is negative.
+     */
+    public void setStaleWindow(long seconds, Object owner) {
+        if (seconds < 0)
+            throw new IllegalArgumentException("Invalid stale window: " + seconds);
+        lock.lock();
+        try {
+            staleWindow = seconds * 1000;
+            staleWindowOwner = owner;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the stale window back to 0 if it was last set by the given owner, e.g., when the lookup service that
+     * enabled serve-stale is closed, while other services sharing this cache keep the window they set.
+     *
+     * @param owner The owner passed to setStaleWindow.
+     * @return true if the stale window was reset.
+     */
+    public boolean disableStaleWindow(Object owner) {
+        lock.lock();
+        try {
+            if (owner == null || staleWindowOwner != owner)
+                return false;
+            staleWindow = 0;
+            staleWindowOwner = null;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long expired records are kept for getStaleResults, in seconds.
+     */
+    public long getStaleWindow() {
+        return staleWindow / 1000;
+    }
+
+    /**
+     * Returns the number of refreshes started by refresh-ahead.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    private void refresh(DNSQuestion question, RefreshAhead refresh) {
+        if (!refreshing.add(question)) return;
+        refreshes.increment();
+        try {
+            refresh.refresher.apply(question).whenComplete((result, failure) -> refreshing.remove(question));
+        } catch (RuntimeException e) {
+            // The refresher could not start (e.g., it was shut down); the next read may try again
+            refreshing.remove(question);
+        }
+    }
+
+    private long weight(RecordSet set) {
+        return unit == Unit.RECORDS ? Math.max(1, set.records.length) : set.estimatedBytes();
+    }
+
+    private void evict(DNSQuestion question) {
+        RecordSet set = cachedResults.remove(question);
+        if (set != null) {
+            forget(question); // under the lock, like every change of a bounded cache
+            evictions.increment();
+            evictedRecords.add(set.records.length);
+        }
     }
 
     /**
      * Returns a set of resource records already cached for a particular query. If no results are cached for the
-     * specified query, returns an empty set. Expired results are removed from the cache before being returned. This
-     * method does not perform the query itself, it only returns previously cached results. Results are returned in
-     * random order.
+     * specified query, returns an empty set. Expired results are not returned. This method does not perform the query
+     * itself, it only returns previously cached results. The records of a set are returned in round-robin order: each
+     * read starts one record further into the set than the previous one. The results are a view of the cached set, so
+     * in the common case, where all its records are valid, no copy is made.
+     * <p>
+     * When the set is empty because a negative answer is cached for the query (and, if CNAMEs are included, no CNAME
+     * record is cached for the name), the returned results report it through isNegative() and getNegativeAnswer().
      *
      * @param question     DNS query (host name/type/class) for the results to be obtained.
      * @param includeCname Set to true to indicate that records for the same FQDN but with a CNAME record type should be
@@ -57,29 +340,105 @@ public class DNSCache {
      *                     effect if the question itself is a request for CNAME records.
      * @return A potentially empty set of resources associated to the query.
      */
-    public List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname) {
+    public CachedResults getCachedResults(DNSQuestion question, boolean includeCname) {
+        long now = CoarseClock.now();
+        CachedResults results = validResults(question, now);
+        if (!includeCname || question.getRecordType() == RecordType.CNAME)
+            return results;
+
+        CachedResults aliases = validResults(question.getCnameQuestion(), now);
+        if (aliases.isEmpty())
+            return results;
+        return results.isEmpty() ? aliases : CachedResults.concat(results, aliases);
+    }
+
+    /**
+     * Returns the records cached for a particular query, including the records that have expired within the stale
+     * window. The records that have expired are copies of the cached records, with a TTL of STALE_TTL seconds. Unlike
+     * getCachedResults, this does not count as a use of the records, and negative answers are not reported. Results
+     * are returned in random order.
+     *
+     * @param question     DNS query (host name/type/class) for the results to be obtained.
+     * @param includeCname Set to true to include the CNAME records for the same host name, as in getCachedResults.
+     * @return A potentially empty set of valid and stale resources associated to the query.
+     */
+    public CachedResults getStaleResults(DNSQuestion question, boolean includeCname) {
+        long window = staleWindow;
+        if (window == 0)
+            return CachedResults.UNKNOWN;
+        long now = CoarseClock.now();
         List<ResourceRecord> returningList = new ArrayList<>();
-        Set<ResourceRecord> results = cachedResults.get(question);
-        if (results != null) {
-            results.removeIf(ResourceRecord::isExpired);
-            returningList.addAll(results);
-        }
+        RecordSet set = cachedResults.get(question);
+        if (set != null)
+            set.addStale(returningList, now, now - window);
 
         if (includeCname && question.getRecordType() != RecordType.CNAME) {
-            results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-            if (results != null) {
-                results.removeIf(ResourceRecord::isExpired);
-                returningList.addAll(results);
-            }
+            set = cachedResults.get(question.getCnameQuestion());
+            if (set != null)
+                set.addStale(returningList, now, now - window);
         }
 
         Collections.shuffle(returningList);
-        return returningList;
+        return CachedResults.of(returningList);
+    }
+
+    /**
+     * Returns the latest expiration time of the records or negative answer cached for a question, including its CNAME
+     * records as getCachedResults does, or 0 if nothing is cached for it. A refresh of the question has succeeded once
+     * this time moves later. Unlike getCachedResults, this does not count as a use of the records.
+     *
+     * @param question DNS query (host name/type/class).
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    long getLatestExpiration(DNSQuestion question) {
+        long latest = latestExpiration(cachedResults.get(question));
+        if (question.getRecordType() != RecordType.CNAME)
+            latest = Math.max(latest, latestExpiration(cachedResults.get(question.getCnameQuestion())));
+        return latest;
+    }
+
+    private static long latestExpiration(RecordSet set) {
+        if (set == null)
+            return 0;
+        if (set.negative != null)
+            return set.negative.getExpirationTime();
+        long latest = 0;
+        for (ResourceRecord record : set.records)
+            latest = Math.max(latest, record.getExpirationTime());
+        return latest;
+    }
+
+    /**
+     * Returns the valid records cached for the question, or the negative answer cached for it if there is one that
+     * has not expired, and counts the read for eviction and refresh-ahead.
+     */
+    private CachedResults validResults(DNSQuestion question, long now) {
+        RecordSet set = cachedResults.get(question);
+        TinyLfuPolicy<DNSQuestion> bounded = policy;
+        if (bounded != null && !rootQuestion.equals(question)) {
+            bounded.recordFrequency(question);
+            if (set != null && lock.tryLock()) {
+                try {
+                    bounded.recordAccess(question);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (set == null)
+            return CachedResults.UNKNOWN;
+        CachedResults results = set.results(now);
+        if (set.negative != null)
+            return results;
+        RefreshAhead refresh = refreshAhead;
+        if (refresh != null && set.refreshDue(now, refresh) && !rootQuestion.equals(question))
+            refresh(question, refresh);
+        return results;
     }
 
     /**
      * Adds a specific resource record to the DNS cache. If the cache already has an equivalent resource record, the
-     * existing record is updated if the new one expires after the existing record.
+     * existing record is replaced if the new one expires after the existing record.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result of a DNS query.
      */
@@ -87,33 +446,260 @@ public class DNSCache {
 
         if (record.isExpired()) return;
 
-        Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+        if (policy == null) {
+            add(record);
+            return;
+        }
+        lock.lock();
+        try {
+            RecordSet updated = add(record);
+            TinyLfuPolicy<DNSQuestion> bounded = policy;
+            if (bounded != null && !rootQuestion.equals(record.getQuestion()))
+                bounded.recordWrite(record.getQuestion(), weight(updated), this::evict);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // Find a record for the same question containing the same result
-        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
-            results.add(record);
-        else
-            oldRecord.update(record);
+    private RecordSet add(ResourceRecord record) {
+        return cachedResults.compute(record.getQuestion(), (question, set) -> {
+            long window = staleWindow;
+            RecordSet updated = set == null ? RecordSet.of(record, window) : set.with(record, window);
+            // Scheduled again when the set expires earlier, or when it replaced a negative answer
+            if (set == null || updated.scheduledAt != set.scheduledAt)
+                expirations.schedule(question, updated.scheduledAt);
+            return updated;
+        });
     }
 
     /**
-     * Perform a specific action for each query and its set of cached records. This action can be specified using a
-     * lambda expression or method name. Expired records are removed before the action is performed.
+     * Caches a negative answer for its question. Records still valid for the question are kept, since they were
+     * obtained separately and a record proves that the name exists; otherwise the negative answer replaces whatever
+     * was cached, including an earlier negative answer.
+     *
+     * @param negative The negative answer, built from the SOA record of the response.
+     */
+    public void addNegativeResult(NegativeAnswer negative) {
+
+        if (negative.isExpired() || rootQuestion.equals(negative.getQuestion())) return;
+
+        if (policy == null) {
+            addNegative(negative);
+            return;
+        }
+        lock.lock();
+        try {
+            RecordSet updated = addNegative(negative);
+            TinyLfuPolicy<DNSQuestion> bounded = policy;
+            if (bounded != null)
+                bounded.recordWrite(negative.getQuestion(), weight(updated), this::evict);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RecordSet addNegative(NegativeAnswer negative) {
+        long now = CoarseClock.now();
+        return cachedResults.compute(negative.getQuestion(), (question, set) -> {
+            if (set != null && set.negative == null && set.addValid(new ArrayList<>(), now) > 0)
+                return set;
+            RecordSet updated = RecordSet.of(negative);
+            expirations.schedule(question, updated.scheduledAt);
+            return updated;
+        });
+    }
+
+    /**
+     * Removes the expired records of every set that is due in the timing wheel at time now, once they have been expired
+     * for the stale window. Sets left empty are removed, and the others are scheduled again for their next expiration.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     */
+    void sweep(long now) {
+        long window = staleWindow;
+        lock.lock();
+        try {
+            expirations.advance(now, (question, deadline) -> {
+                RecordSet remaining = cachedResults.computeIfPresent(question, (q, set) -> {
+                    if (set.scheduledAt != deadline)
+                        return set; // the set was scheduled again since
+                    RecordSet valid = set.withoutExpired(now, window);
+                    if (valid != null)
+                        expirations.schedule(q, valid.scheduledAt);
+                    else
+                        forget(q);
+                    return valid;
+                });
+                TinyLfuPolicy<DNSQuestion> bounded = policy;
+                if (bounded != null && !rootQuestion.equals(question)) {
+                    if (remaining == null)
+                        bounded.remove(question);
+                    else
+                        bounded.updateWeight(question, weight(remaining));
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isDelegation(DNSQuestion question) {
+        return question.getRecordType() == RecordType.NS && question.getRecordClass() == RecordClass.IN
+                && !question.getDomainName().isRoot();
+    }
+
+    /**
+     * Records that a zone cut was learned from a referral, so that lookups under the zone can start at its nameservers
+     * (see getClosestNameServer). Any nameserver can send NS records for any zone, so only the NS records of a
+     * referral sent by a nameserver of an enclosing zone should be recorded; other NS records are cached but never
+     * used as a starting point. The zone is forgotten once its NS records are removed, and it is not recorded if they
+     * are not cached.
+     *
+     * @param zone The zone the referral delegates to.
+     */
+    public void addDelegation(DomainName zone) {
+        DNSQuestion question = new DNSQuestion(zone, RecordType.NS, RecordClass.IN);
+        if (!isDelegation(question)) return;
+        // Updated along with the map entry, so that it cannot miss a zone whose records are being swept
+        cachedResults.computeIfPresent(question, (key, set) -> {
+            delegations.add(zone);
+            return set;
+        });
+    }
+
+    /**
+     * Removes the zone of a question from the delegation index, once its NS records have been removed.
+     */
+    private void forget(DNSQuestion question) {
+        if (isDelegation(question))
+            delegations.remove(question.getDomainName());
+    }
+
+    /**
+     * Returns the address of a nameserver of the deepest zone enclosing a name (possibly the name itself) for which
+     * both the NS records and the address of at least one of those nameservers are cached and valid. A lookup of the
+     * name can start there rather than at the root: the nameservers of the zones above it would only refer to it.
+     * Addresses are only taken from A records, as for the other nameservers used by iterative lookups.
+     *
+     * @param name The name being looked up.
+     * @return The address of a nameserver, or null if no zone other than the root is known to enclose the name.
+     */
+    public InetAddress getClosestNameServer(DomainName name) {
+        List<InetAddress> servers = getClosestNameServers(name);
+        return servers.isEmpty() ? null : servers.get(0);
+    }
+
+    /**
+     * Returns the addresses of all the nameservers of the zone chosen by getClosestNameServer whose address is cached,
+     * one for each nameserver, so a lookup can choose between them.
+     *
+     * @param name The name being looked up.
+     * @return The addresses, in the order of the NS records, or an empty list if no zone other than the root is known
+     * to enclose the name.
+     */
+    public List<InetAddress> getClosestNameServers(DomainName name) {
+        for (DomainName zone : delegations.enclosingZones(name)) {
+            List<InetAddress> servers = getNameServers(zone);
+            if (!servers.isEmpty()) return servers;
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Returns the zone chosen by getClosestNameServer, i.e., the zone whose nameservers getClosestNameServers returns.
+     *
+     * @param name The name being looked up.
+     * @return The zone, or null if no zone other than the root is known to enclose the name.
+     */
+    public DomainName getClosestZone(DomainName name) {
+        for (DomainName zone : delegations.enclosingZones(name)) {
+            if (!getNameServers(zone).isEmpty()) return zone;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the addresses of the nameservers of a zone whose address is cached, one for each nameserver, in the
+     * order of the NS records.
+     */
+    List<InetAddress> getNameServers(DomainName zone) {
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord ns : getCachedResults(new DNSQuestion(zone, RecordType.NS, RecordClass.IN), false)) {
+            DomainName server = ns.getNameResult();
+            if (server == null) continue;
+            for (ResourceRecord address :
+                    getCachedResults(new DNSQuestion(server, RecordType.A, RecordClass.IN), false)) {
+                InetAddress inet = address.getInetResult();
+                if (inet != null) {
+                    if (!servers.contains(inet)) servers.add(inet);
+                    break;
+                }
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Saves the records that have not expired to a snapshot file, which replaces the file atomically. The root
+     * nameservers, which are always cached, and negative answers are not saved.
+     *
+     * @param file The snapshot file.
+     * @return The number of records saved.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        try (CacheSnapshot.Writer writer = CacheSnapshot.create(file, now)) {
+            for (Map.Entry<DNSQuestion, RecordSet> entry : cachedResults.entrySet()) {
+                if (rootQuestion.equals(entry.getKey())) continue;
+                for (ResourceRecord record : entry.getValue().records) {
+                    if (record.getExpirationTime() > now)
+                        writer.add(record);
+                }
+            }
+            writer.commit();
+            return writer.getCount();
+        }
+    }
+
+    /**
+     * Adds the records of a snapshot file that have not expired yet to the cache, with their original expiration time.
+     * The file is read through a memory-mapped buffer.
+     *
+     * @param file The snapshot file, written by saveSnapshot.
+     * @return The number of records loaded.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        return CacheSnapshot.read(file, this::addResult);
+    }
+
+    /**
+     * Returns the number of questions with records in the cache, including records that have expired but have not been
+     * removed yet.
+     */
+    int size() {
+        return cachedResults.size();
+    }
+
+    /**
+     * Perform a specific action for each query and its set of cached records, in question order. This action can be
+     * specified using a lambda expression or method name. Expired records are not included.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(ResourceRecord::isExpired);
-            if (!records.isEmpty())
+        long now = CoarseClock.now();
+        new TreeMap<>(cachedResults).forEach((question, set) -> {
+            List<ResourceRecord> records = new ArrayList<>();
+            if (set.addValid(records, now) > 0)
                 consumer.accept(question, records);
         });
     }
 
     /**
      * Perform a specific action for each query and individual record. This action can be specified using a lambda
-     * expression or method name. Expired records are removed before the action is performed.
+     * expression or method name. Expired records are not included.
      *
      * @param consumer Action to be performed for each query and record.
      */
@@ -121,4 +707,266 @@ public class DNSCache {
         forEachQuestion((question, records) -> records.forEach(record -> consumer.accept(question, record)));
     }
 
+    /**
+     * The settings of refresh-ahead.
+     */
+    private static final class RefreshAhead {
+        private final double fraction;
+        private final int minHits;
+        private final Function<DNSQuestion, ? extends CompletionStage<?>> refresher;
+
+        RefreshAhead(double fraction, int minHits, Function<DNSQuestion, ? extends CompletionStage<?>> refresher) {
+            this.fraction = fraction;
+            this.minHits = minHits;
+            this.refresher = refresher;
+        }
+    }
+
+    /**
+     * Runs the sweeper of a cache on the clock thread, for as long as the cache is in use.
+     */
+    private static final class Sweeper implements Runnable {
+        private final WeakReference<DNSCache> cache;
+        private volatile ScheduledFuture<?> future;
+
+        Sweeper(DNSCache cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        @Override
+        public void run() {
+            DNSCache current = cache.get();
+            if (current != null)
+                current.sweep(CoarseClock.now());
+            else if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    /**
+     * An immutable set of records for the same question. Records are found by hash through a small open-addressing
+     * index, so checking whether a record is already cached does not depend on the size of the set. Sets of more than
+     * MAX_INDEXED records, which are rare but legal (e.g., large TXT or round-robin A sets), have no index and are
+     * searched linearly; adding a record copies the whole set anyway.
+     */
+    private static final class RecordSet {
+        /** Rough heap use of a record in a set, for sizing: the record, its slot in the set and its share of the set. */
+        static final int ESTIMATED_BYTES_PER_RECORD = 96;
+        /** The largest set whose views are kept, rather than created by each read. */
+        static final int MAX_VIEWS = 16;
+        /** The largest set with an index, whose byte slots hold record positions up to 255. */
+        static final int MAX_INDEXED = 255;
+
+        private final ResourceRecord[] records;
+        /**
+         * Index + 1 of the record in each slot, 0 for an empty slot; always at most half full. Null if the set has
+         * more than MAX_INDEXED records.
+         */
+        private final byte[] slots;
+        /** The earliest expiration time of any record, so reads can skip checking records one by one. */
+        private final long minExpiration;
+        /**
+         * The deadline this set is scheduled for in the timing wheel, never after minExpiration plus the stale window
+         * when the set was built.
+         */
+        private final long scheduledAt;
+        /** The negative answer cached for the question, in which case there are no records; null otherwise. */
+        private final NegativeAnswer negative;
+        /** When this set last changed (other than by removing expired records), for refresh-ahead. */
+        private final long changedAt;
+        /**
+         * Reads since this set was created or last refreshed, counted only with refresh-ahead enabled. Concurrent
+         * increments may be lost, which only delays a refresh.
+         */
+        private int hits;
+        /** The number of reads of this set, which rotates the order its records are returned in. */
+        private volatile int rotation;
+        /**
+         * The views of the records returned by reads, one per rotation, created by the first read that needs them
+         * (concurrent reads may each create one, which is harmless); null if the set is too large to keep them. For a
+         * negative answer, the only view reports the answer.
+         */
+        private final CachedResults[] views;
+
+        private static final AtomicIntegerFieldUpdater<RecordSet> ROTATION =
+                AtomicIntegerFieldUpdater.newUpdater(RecordSet.class, "rotation");
+
+        private RecordSet(NegativeAnswer negative) {
+            this.records = new ResourceRecord[0];
+            this.slots = new byte[2];
+            this.minExpiration = this.scheduledAt = negative.getExpirationTime();
+            this.negative = negative;
+            this.changedAt = CoarseClock.now();
+            this.views = new CachedResults[] {CachedResults.of(negative)};
+        }
+
+        private RecordSet(ResourceRecord[] records, long scheduledAt, long changedAt, long staleWindow) {
+            this.records = records;
+            this.negative = null;
+            this.changedAt = changedAt;
+            this.views = records.length <= MAX_VIEWS ? new CachedResults[records.length] : null;
+            int length = Integer.highestOneBit(Math.max(2, records.length) * 2 - 1) * 2;
+            this.slots = records.length <= MAX_INDEXED ? new byte[length] : null;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < records.length; i++) {
+                if (slots != null) {
+                    int slot = records[i].hashCode() & (length - 1);
+                    while (slots[slot] != 0)
+                        slot = (slot + 1) & (length - 1);
+                    slots[slot] = (byte) (i + 1);
+                }
+                min = Math.min(min, records[i].getExpirationTime());
+            }
+            this.minExpiration = min;
+            this.scheduledAt = Math.min(scheduledAt, min + staleWindow);
+        }
+
+        static RecordSet of(ResourceRecord record, long staleWindow) {
+            return new RecordSet(new ResourceRecord[] {record}, Long.MAX_VALUE, CoarseClock.now(), staleWindow);
+        }
+
+        static RecordSet of(Collection<ResourceRecord> records) {
+            return new RecordSet(records.toArray(new ResourceRecord[0]), Long.MAX_VALUE, CoarseClock.now(), 0);
+        }
+
+        static RecordSet of(NegativeAnswer negative) {
+            return new RecordSet(negative);
+        }
+
+        /**
+         * Returns the position of an equal record in this set, or -1 if there is none.
+         */
+        private int indexOf(ResourceRecord record) {
+            if (slots == null) {
+                for (int i = 0; i < records.length; i++) {
+                    if (records[i].equals(record)) return i;
+                }
+                return -1;
+            }
+            int mask = slots.length - 1;
+            for (int slot = record.hashCode() & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int i = (slots[slot] & 0xFF) - 1;
+                if (records[i].equals(record)) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns an estimate of the heap used by this set, its records, its question and its entry in the map. Records
+         * with typed data are counted with the typical size of that data.
+         */
+        long estimatedBytes() {
+            int index = slots != null ? 16 + slots.length : 0;
+            long bytes = 48 + 16 + 4L * records.length + index + 32 + 32; // set, arrays, question, entry
+            if (views != null)
+                bytes += 16 + 28L * views.length; // the array, and the views once every rotation has been read
+            for (ResourceRecord record : records)
+                bytes += 48 + (record.getDataResult() != null ? 64 : 0);
+            if (negative != null)
+                bytes += 32 + 48 + 64; // the answer and its SOA record
+            return bytes;
+        }
+
+        /**
+         * Returns a set containing the record, replacing an equal record if the new one expires later. Returns this
+         * set if an equal record already expires at the same time or later. A record replaces a negative answer.
+         */
+        RecordSet with(ResourceRecord record, long staleWindow) {
+            if (negative != null)
+                return of(record, staleWindow);
+            int i = indexOf(record);
+            if (i >= 0 && records[i].getExpirationTime() >= record.getExpirationTime())
+                return this;
+            ResourceRecord[] copy = Arrays.copyOf(records, i >= 0 ? records.length : records.length + 1);
+            copy[i >= 0 ? i : records.length] = record;
+            return new RecordSet(copy, scheduledAt, CoarseClock.now(), staleWindow);
+        }
+
+        /**
+         * Returns a set with the records of this set that have not been expired for longer than the stale window at
+         * time now, scheduled for the earliest time one of them leaves the window, or null if none is left. A negative
+         * answer is kept until it expires.
+         */
+        RecordSet withoutExpired(long now, long staleWindow) {
+            if (negative != null)
+                return minExpiration > now ? this : null;
+            List<ResourceRecord> kept = new ArrayList<>(records.length);
+            addValid(kept, now - staleWindow);
+            if (kept.isEmpty()) return null;
+            return new RecordSet(kept.toArray(new ResourceRecord[0]), Long.MAX_VALUE, changedAt, staleWindow);
+        }
+
+        /**
+         * Counts a read of this set, and returns true if it has been read often enough and has little enough of its
+         * TTL left to be refreshed. The count starts again, so a refresh that does not change the set (e.g., because
+         * it failed) is only retried after as many reads.
+         */
+        boolean refreshDue(long now, RefreshAhead refresh) {
+            if (++hits < refresh.minHits
+                    || minExpiration - now > refresh.fraction * (minExpiration - changedAt))
+                return false;
+            hits = 0;
+            return true;
+        }
+
+        /**
+         * Adds the records of this set that expired after the cutoff to the list, replacing the ones that have expired
+         * at time now by copies with a TTL of STALE_TTL seconds.
+         */
+        void addStale(List<ResourceRecord> results, long now, long cutoff) {
+            if (negative != null) return;
+            for (ResourceRecord record : records) {
+                if (record.getExpirationTime() > now)
+                    results.add(record);
+                else if (record.getExpirationTime() > cutoff)
+                    results.add(record.withTTL(STALE_TTL));
+            }
+        }
+
+        /**
+         * Returns the records of this set that have not expired at time now, starting one record further into the set
+         * than the previous call, or the negative answer if it has not expired. Only copies the records if some of
+         * them have expired (until the set is swept) or the set is too large to keep its views.
+         */
+        CachedResults results(long now) {
+            if (negative != null)
+                return minExpiration > now ? views[0] : CachedResults.UNKNOWN;
+            if (minExpiration <= now) {
+                List<ResourceRecord> valid = new ArrayList<>(records.length);
+                addValid(valid, now);
+                if (valid.isEmpty()) return CachedResults.UNKNOWN;
+                return CachedResults.of(valid.toArray(new ResourceRecord[0]), nextOffset(valid.size()));
+            }
+            int offset = nextOffset(records.length);
+            if (views == null)
+                return CachedResults.of(records, offset);
+            CachedResults view = views[offset];
+            if (view == null)
+                views[offset] = view = CachedResults.of(records, offset);
+            return view;
+        }
+
+        private int nextOffset(int length) {
+            return length == 1 ? 0 : Integer.remainderUnsigned(ROTATION.getAndIncrement(this), length);
+        }
+
+        /**
+         * Adds the records of this set that have not expired at time now to the list, and returns how many were
+         * added.
+         */
+        int addValid(List<ResourceRecord> results, long now) {
+            if (minExpiration > now) {
+                results.addAll(Arrays.asList(records));
+                return records.length;
+            }
+            int added = 0;
+            for (ResourceRecord record : records) {
+                if (record.getExpirationTime() > now) {
+                    results.add(record);
+                    added++;
+                }
+            }
+            return added;
+        }
+    }
 }
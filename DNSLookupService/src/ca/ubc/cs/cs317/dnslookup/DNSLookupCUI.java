@@ -1,12 +1,26 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Console;
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class DNSLookupCUI implements DNSVerbosePrinter {
 
     public static final int MAX_INDIRECTION_LEVEL = 10;
+    /** Popular records are refreshed in the background when less than this fraction of their TTL is left. */
+    public static final double REFRESH_AHEAD_FRACTION = 0.1;
+    /** The number of reads after which a record is popular enough to be refreshed. */
+    public static final int REFRESH_AHEAD_HITS = 3;
+    /** How long expired records are kept, in seconds, to answer when the nameservers do not (RFC 8767). */
+    public static final long SERVE_STALE_WINDOW = 24 * 60 * 60;
+    /** The file, in the home directory, the cache is saved to and restored from between runs. */
+    public static final String SNAPSHOT_FILE_NAME = ".dnslookup-cache";
+    /** How often the cache is saved, in seconds, in addition to when the program ends. */
+    public static final long SNAPSHOT_PERIOD = 5 * 60;
 
     private static boolean verboseTracing = false;
     private static DNSLookupService lookupService;
@@ -32,12 +46,24 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
 
         try {
             lookupService = new DNSLookupService(argNameServer, new DNSLookupCUI());
+            lookupService.setRefreshAhead(REFRESH_AHEAD_FRACTION, REFRESH_AHEAD_HITS);
+            lookupService.setServeStale(SERVE_STALE_WINDOW, DNSLookupService.DEFAULT_STALE_ANSWER_DEADLINE);
         } catch (SocketException | UnknownHostException e) {
             e.printStackTrace();
             System.exit(1);
         }
         System.out.println("Nameserver is: " + lookupService.getNameServer());
 
+        Path snapshot = Paths.get(System.getProperty("user.home"), SNAPSHOT_FILE_NAME);
+        if (Files.exists(snapshot)) {
+            try {
+                System.out.println("Restored " + cache.loadSnapshot(snapshot) + " cached records");
+            } catch (IOException e) {
+                System.err.println("Cached records could not be restored (" + e.getMessage() + ").");
+            }
+        }
+        lookupService.setSnapshotFile(snapshot, SNAPSHOT_PERIOD);
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -107,7 +133,8 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n" +
+                                "\tA, AAAA, NS, MX, CNAME, SOA, PTR, TXT, SRV");
                         continue;
                     }
                 else {
@@ -149,7 +176,13 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
 
-        DNSQuestion question = new DNSQuestion(hostName, type, RecordClass.IN);
+        DNSQuestion question;
+        try {
+            question = new DNSQuestion(hostName, type, RecordClass.IN);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid host name: " + e.getMessage());
+            return;
+        }
         try {
             Collection<ResourceRecord> results = lookupService.getResultsFollowingCNames(question, MAX_INDIRECTION_LEVEL);
             if (verboseTracing) System.out.println("\n========== FINAL RESULT ==========");
@@ -241,23 +274,33 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
     }
 
     private static void printResourceRecord(ResourceRecord record, int typeCode, int classCode) {
-        System.out.format("       %-30s %-10d %-5s %-5s %s\n",
-                record.getHostName().isEmpty() ? "(root)" : record.getHostName(),
-                record.getRemainingTTL(),
-                record.getRecordType() == RecordType.OTHER ? typeCode : record.getRecordType(),
-                record.getRecordClass() == RecordClass.OTHER ? classCode : record.getRecordClass(),
+        printResourceRecord(record.getQuestion(), record.getRemainingTTL(), typeCode, classCode,
                 record.getTextResult());
     }
 
+    private static void printResourceRecord(DNSQuestion question, long ttl, int typeCode, int classCode,
+                                            String result) {
+        System.out.format("       %-30s %-10d %-5s %-5s %s\n",
+                question.getDomainName().isRoot() ? "(root)" : question.getHostName(),
+                ttl,
+                question.getRecordType() == RecordType.OTHER ? typeCode : question.getRecordType(),
+                question.getRecordClass() == RecordClass.OTHER ? classCode : question.getRecordClass(),
+                result);
+    }
+
     /**
-     * Prints the result of a DNS query.
+     * Prints the result of a DNS query. A cached negative answer is printed as NXDOMAIN or NODATA, with its
+     * remaining TTL, rather than as UNKNOWN.
      *
      * @param question Host name and record type used for the query.
      * @param results  Collection of results to be printed for the question.
      */
     private static void printResults(DNSQuestion question, Collection<ResourceRecord> results) {
-        if (results.isEmpty())
-            printResourceRecord(new ResourceRecord(question, -1, "UNKNOWN"), 0, 0);
+        if (results instanceof CachedResults && ((CachedResults) results).isNegative()) {
+            NegativeAnswer negative = ((CachedResults) results).getNegativeAnswer();
+            printResourceRecord(question, negative.getRemainingTTL(), 0, 0, negative.getKind().toString());
+        } else if (results.isEmpty())
+            printResourceRecord(question, 0, 0, 0, "UNKNOWN");
         for (ResourceRecord record : results)
             printResourceRecord(record, 0, 0);
     }
@@ -1,38 +1,96 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.*;
-import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class DNSLookupService {
     public static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL_NS = 10;
+    private static final int MAX_REFERRALS = 16;
     private static final int MAX_QUERY_ATTEMPTS = 3;
     protected static final int SO_TIMEOUT = 5000;
+    /** The percentile of a nameserver's recent round-trip times after which the next nameserver is also queried. */
+    private static final int HEDGE_PERCENTILE = 90;
+    /** The round-trip time assumed for a nameserver that was never queried, in milliseconds. */
+    private static final long UNKNOWN_RTT = 400;
+    /** The shortest wait before querying the next nameserver, so jitter on close servers does not cause hedging. */
+    private static final long MIN_HEDGE_DELAY = 20;
+    /** How long a lookup waits for fresh results before answering with stale ones, as recommended by RFC 8767. */
+    public static final long DEFAULT_STALE_ANSWER_DEADLINE = 1800;
+    /** The number of background lookups (refresh-ahead and serve-stale) in progress at once; others wait their turn. */
+    private static final int MAX_BACKGROUND_LOOKUPS = 64;
+    /** The number of background lookups that can wait for their turn; others are rejected. */
+    private static final int MAX_PENDING_BACKGROUND_LOOKUPS = 4096;
 
     private final DNSCache cache = DNSCache.getInstance();
+    private volatile int ednsPayloadSize = DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE;
+    private volatile DNSMessagePool messagePool = new DNSMessagePool(ednsPayloadSize);
     private final Random random = new SecureRandom();
     private final DNSVerbosePrinter verbose;
-    private final DatagramSocket socket;
-    private InetAddress nameServer;
+    private final QueryEngine engine;
+    private final RttEstimator rtt = new RttEstimator(UNKNOWN_RTT, SO_TIMEOUT);
+    private final TCPConnectionPool tcpConnections;
+    private final ExecutorService tcpExecutor = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "dns-tcp-query");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int port;
+    private volatile InetAddress nameServer;
+    private volatile long staleAnswerDeadline = DEFAULT_STALE_ANSWER_DEADLINE;
+    private DNSLookupService backgroundService; // created with the first background lookup
+    private final Queue<BackgroundLookup> pendingBackgroundLookups = new ArrayDeque<>();
+    private int runningBackgroundLookups; // guarded by pendingBackgroundLookups
+    private final Map<DNSQuestion, CompletableFuture<Void>> backgroundLookups = new ConcurrentHashMap<>();
+    /** The resolutions in progress, by question; locked to change which resolution another one waits for. */
+    private final Map<DNSQuestion, Resolution> resolutions = new ConcurrentHashMap<>();
+    private Path snapshotFile; // null unless snapshots are enabled
+    private ScheduledExecutorService snapshotExecutor;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private ExecutorService lookupExecutor; // created by the first submitLookup
+    /** The refresher this service installs in the shared cache, kept so it only ever disables its own. */
+    private final Function<DNSQuestion, CompletableFuture<Void>> refresher = this::resolveInBackground;
 
     /**
-     * Creates a new lookup service. Also initializes the datagram socket object with a default timeout.
+     * Creates a new lookup service. Also opens the (non-blocking) datagram channel used for queries, shared by all the
+     * queries of this service (see QueryEngine).
      *
      * @param nameServer The nameserver to be used initially. If set to null, "root" or "random", will choose a random
      *                   pre-determined root nameserver.
      * @param verbose    A DNSVerbosePrinter listener object with methods to be called at key events in the query
      *                   processing.
-     * @throws SocketException      If a DatagramSocket cannot be created.
+     * @throws SocketException      If a DatagramChannel cannot be created.
      * @throws UnknownHostException If the nameserver is not a valid server.
      */
     public DNSLookupService(String nameServer, DNSVerbosePrinter verbose) throws SocketException, UnknownHostException {
+        this(nameServer, verbose, DEFAULT_DNS_PORT);
+    }
+
+    /**
+     * Creates a new lookup service for nameservers that listen on another port than DEFAULT_DNS_PORT, e.g., local
+     * servers used for testing.
+     */
+    DNSLookupService(String nameServer, DNSVerbosePrinter verbose, int port)
+            throws SocketException, UnknownHostException {
         this.verbose = verbose;
-        socket = new DatagramSocket();
-        socket.setSoTimeout(SO_TIMEOUT);
+        this.port = port;
+        this.tcpConnections = new TCPConnectionPool(port);
+        try {
+            engine = new QueryEngine(port);
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            SocketException exception = new SocketException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
         this.setNameServer(nameServer);
     }
 
@@ -63,28 +121,469 @@ public class DNSLookupService {
     }
 
     /**
-     * Closes the lookup service and related sockets and resources.
+     * Returns the UDP payload size advertised in queries (in an EDNS OPT record), or 0 if EDNS is disabled.
+     *
+     * @return The advertised payload size, in bytes.
+     */
+    public int getEDNSPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /**
+     * Updates the UDP payload size advertised in all future queries. Nameservers that support EDNS will send responses
+     * of up to this size in a single datagram, instead of truncating them at MAX_DNS_MESSAGE_LENGTH bytes. Message
+     * buffers are sized accordingly.
+     *
+     * @param payloadSize The payload size to advertise, in bytes, between MAX_DNS_MESSAGE_LENGTH and
+     *                    MAX_EDNS_PAYLOAD_SIZE (1232 is a common choice that avoids IP fragmentation), or 0 to disable
+     *                    EDNS and send queries without an OPT record.
+     */
+    public void setEDNSPayloadSize(int payloadSize) {
+        if (payloadSize != 0 &&
+                (payloadSize < DNSMessage.MAX_DNS_MESSAGE_LENGTH || payloadSize > DNSMessage.MAX_EDNS_PAYLOAD_SIZE))
+            throw new IllegalArgumentException("Invalid EDNS payload size: " + payloadSize);
+        this.ednsPayloadSize = payloadSize;
+        this.messagePool = new DNSMessagePool(Math.max(payloadSize, DNSMessage.MAX_DNS_MESSAGE_LENGTH));
+    }
+
+    /**
+     * Enables refresh-ahead in the cache: a popular record set read in the last part of its TTL is resolved again in
+     * the background, with iterativeQuery, and replaced before it expires.
+     *
+     * @param fraction The fraction of the TTL, between 0 and 1, left when a refresh is started (e.g., 0.1).
+     * @param minHits  The number of reads of a record set before it is worth refreshing.
+     * @throws SocketException If the channel used for background lookups cannot be created.
+     * @see DNSCache#setRefreshAhead
+     */
+    public void setRefreshAhead(double fraction, int minHits) throws SocketException {
+        startBackground();
+        cache.setRefreshAhead(fraction, minHits, refresher);
+    }
+
+    /**
+     * Disables refresh-ahead, unless another service sharing the cache enabled it since this one did.
+     */
+    public void disableRefreshAhead() {
+        cache.disableRefreshAhead(refresher);
+    }
+
+    /**
+     * Enables serve-stale (RFC 8767): the cache keeps expired records for the given stale window, and when a lookup
+     * only finds stale records, it waits at most clientDeadline milliseconds for fresh results. If the nameservers
+     * have not answered by then, or do not answer at all, the stale records are returned with a TTL of
+     * DNSCache.STALE_TTL seconds, while the lookup goes on in the background and refreshes the cache if it succeeds.
+     * The stale window is shared by all the services that use the cache, and is reset when this service is closed,
+     * unless another service set it since.
+     *
+     * @param staleWindow    How long expired records are kept, in seconds (RFC 8767 suggests 1 to 3 days); 0
+     *                       disables serve-stale.
+     * @param clientDeadline How long a lookup waits for fresh results before using stale ones, in milliseconds.
+     * @throws SocketException If the channel used for background lookups cannot be created.
+     * @see DNSCache#setStaleWindow
+     */
+    public void setServeStale(long staleWindow, long clientDeadline) throws SocketException {
+        if (clientDeadline < 0)
+            throw new IllegalArgumentException("Invalid deadline: " + clientDeadline);
+        if (staleWindow > 0)
+            startBackground();
+        this.staleAnswerDeadline = clientDeadline;
+        cache.setStaleWindow(staleWindow, this);
+    }
+
+    /**
+     * Saves the cache to a snapshot file every period, and when this service is closed, so that it can be loaded with
+     * DNSCache.loadSnapshot when the resolver starts again. Snapshots are written on a daemon thread; a snapshot that
+     * fails (e.g., the disk is full) is tried again at the next period.
+     *
+     * @param file          The snapshot file, or null to stop saving snapshots.
+     * @param periodSeconds The time between snapshots, in seconds.
+     * @see DNSCache#saveSnapshot
+     */
+    public synchronized void setSnapshotFile(Path file, long periodSeconds) {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshotExecutor = null;
+        }
+        snapshotFile = file;
+        if (file == null) return;
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotExecutor.scheduleWithFixedDelay(() -> saveSnapshot(file), periodSeconds, periodSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    private void saveSnapshot(Path file) {
+        try {
+            cache.saveSnapshot(file);
+        } catch (IOException e) {
+            // The previous snapshot is left as it was
+        }
+    }
+
+    /**
+     * How lookups started with submitLookup run: each one on a thread of its own, which blocks while the lookup waits
+     * for responses. The queries of all the threads share the channel of this service (see QueryEngine).
+     */
+    public enum ThreadMode {
+        /** A platform (operating system) thread per lookup, reused for later lookups once idle. */
+        PLATFORM,
+        /**
+         * A virtual thread per lookup, which is parked rather than blocked while it waits, so thousands of lookups in
+         * progress take little more memory than their state. Requires Java 21 or later.
+         */
+        VIRTUAL
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor, or null if this JVM has no virtual threads. */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = virtualThreadExecutorFactory();
+
+    private static Method virtualThreadExecutorFactory() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // Before Java 21, virtual threads are a preview feature, and the method throws unless it is enabled
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if lookups can run on virtual threads in this JVM (Java 21 or later).
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Sets how the lookups started with submitLookup from now on run. Lookups already started go on as they were.
+     *
+     * @param mode PLATFORM or VIRTUAL threads.
+     * @throws UnsupportedOperationException If mode is VIRTUAL and this JVM has no virtual threads.
+     */
+    public synchronized void setThreadMode(ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL && !isVirtualThreadSupported())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdown();
+            lookupExecutor = null;
+        }
+        threadMode = mode;
+    }
+
+    /**
+     * Returns how the lookups started with submitLookup run.
+     */
+    public synchronized ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Starts a lookup, as getResultsFollowingCNames, on a thread of its own (see setThreadMode). Unlike
+     * getResultsFollowingCNamesAsync, the lookup runs the blocking code of getResultsFollowingCNames and
+     * iterativeQuery, one step after the other; with virtual threads, this scales to as many lookups in progress.
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the results, or completed exceptionally with a CNameIndirectionLimitException.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> submitLookup(DNSQuestion question, int maxIndirectionLevels) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (lookupExecutor == null)
+                lookupExecutor = newLookupExecutor(threadMode);
+            executor = lookupExecutor;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getResultsFollowingCNames(question, maxIndirectionLevels);
+            } catch (CNameIndirectionLimitException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static ExecutorService newLookupExecutor(ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Virtual threads are not available", e);
+            }
+        }
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "dns-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates the lookup service used for background lookups, if it does not exist yet. Background lookups use a lookup
+     * service of their own, so they never share the channel of this service nor show up in its verbose output.
+     */
+    private synchronized void startBackground() throws SocketException {
+        if (backgroundService != null) return;
+        try {
+            backgroundService = new DNSLookupService(getNameServer(), new SilentPrinter(), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // the nameserver is already an address
+        }
+    }
+
+    /**
+     * Resolves a question in the background (see refreshAsync), starting from the current nameserver of this service.
+     * If the question is already being resolved in the background, returns the lookup in progress.
+     * <p>
+     * Background lookups do not block any thread: at most MAX_BACKGROUND_LOOKUPS are in progress at once, multiplexed
+     * by the QueryEngine of the background service, and the others wait in a queue for their turn, so a lookup to
+     * nameservers that do not answer only delays the lookups queued behind it once that many are in the same state.
+     *
+     * @param question Host name and record type/class to be resolved.
+     * @return A future completed when the results, if any, have been added to the cache, or completed exceptionally
+     * if background lookups are not enabled, or too many are waiting.
+     */
+    private CompletableFuture<Void> resolveInBackground(DNSQuestion question) {
+        DNSLookupService background;
+        synchronized (this) {
+            background = backgroundService;
+        }
+        if (background == null)
+            return CompletableFuture.failedFuture(new IllegalStateException("Background lookups are not enabled"));
+        BackgroundLookup lookup = new BackgroundLookup(background, question);
+        CompletableFuture<Void> existing = backgroundLookups.putIfAbsent(question, lookup.future);
+        if (existing != null)
+            return existing;
+        lookup.future.whenComplete((result, failure) -> backgroundLookups.remove(question, lookup.future));
+        synchronized (pendingBackgroundLookups) {
+            if (runningBackgroundLookups >= MAX_BACKGROUND_LOOKUPS) {
+                if (pendingBackgroundLookups.size() >= MAX_PENDING_BACKGROUND_LOOKUPS)
+                    lookup.future.completeExceptionally(new RejectedExecutionException("Too many background lookups"));
+                else
+                    pendingBackgroundLookups.add(lookup);
+                return lookup.future;
+            }
+            runningBackgroundLookups++;
+        }
+        if (start(lookup))
+            backgroundLookupDone();
+        return lookup.future;
+    }
+
+    /**
+     * Starts a background lookup, and returns true if it is already done, in which case the caller must call
+     * backgroundLookupDone(); otherwise that is called when the lookup ends.
+     */
+    private boolean start(BackgroundLookup lookup) {
+        DNSLookupService background = lookup.service;
+        background.nameServer = nameServer;
+        if (background.ednsPayloadSize != ednsPayloadSize)
+            background.setEDNSPayloadSize(ednsPayloadSize);
+        CompletableFuture<Void> resolution = background.refreshAsync(lookup.question);
+        if (resolution.isDone()) {
+            lookup.future.complete(null);
+            return true;
+        }
+        resolution.whenComplete((done, failure) -> {
+            lookup.future.complete(null); // whatever the lookup found is in the cache
+            backgroundLookupDone();
+        });
+        return false;
+    }
+
+    /**
+     * Starts the background lookups waiting for their turn, now that one has ended. Lookups that end at once (e.g.,
+     * because the service was closed) are handled in a loop, so a long queue does not grow the stack.
+     */
+    private void backgroundLookupDone() {
+        while (true) {
+            BackgroundLookup next;
+            synchronized (pendingBackgroundLookups) {
+                next = pendingBackgroundLookups.poll();
+                if (next == null) {
+                    runningBackgroundLookups--;
+                    return;
+                }
+            }
+            if (!start(next))
+                return;
+        }
+    }
+
+    /**
+     * Closes the lookup service and related sockets and resources, after saving a last snapshot of the cache if
+     * snapshots are enabled.
      */
     public void close() {
-        socket.close();
+        disableRefreshAhead();
+        cache.disableStaleWindow(this);
+        synchronized (this) {
+            if (backgroundService != null) {
+                backgroundService.close(); // the lookups in progress fail, and those waiting fail as they start
+                backgroundService = null;
+            }
+            if (lookupExecutor != null)
+                lookupExecutor.shutdown();
+            if (snapshotFile != null) {
+                Path file = snapshotFile;
+                setSnapshotFile(null, 0);
+                saveSnapshot(file);
+            }
+        }
+        tcpConnections.close();
+        tcpExecutor.shutdown();
+        engine.close();
     }
 
     /**
      * Finds all the results for a specific question. If there are valid (not expired) results in the cache, uses these
-     * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
-     * they are included in the results as CNAME records (i.e., not queried further).
+     * results, otherwise queries the nameservers for new records, starting at the closest one whose address is cached.
+     * If there are CNAME records associated to the question, they are included in the results as CNAME records (i.e.,
+     * not queried further). A negative answer cached for the question is a valid result: the nameservers are not
+     * queried again until it expires.
+     * <p>
+     * If the cache only has stale records for the question (see setServeStale), the question is resolved in the
+     * background, and the stale records are returned, with a short TTL, unless fresh results arrive within the client
+     * deadline.
      *
      * @param question Host and record type to be used for search.
-     * @return A (possibly empty) set of resource records corresponding to the specific query requested.
+     * @return A (possibly empty) set of resource records corresponding to the specific query requested. When empty,
+     * it is a CachedResults that reports whether the name or type is known not to exist.
      */
     public Collection<ResourceRecord> getResults(DNSQuestion question) {
+        try {
+            return getResultsAsync(question).join();
+        } catch (CompletionException e) {
+            // The nameservers could not be reached; whatever the lookup found on the way is in the cache
+            return cache.getCachedResults(question, true);
+        }
+    }
+
+    /**
+     * Finds all the results for a specific question, as getResults does, without blocking the calling thread. Cached
+     * results complete the future immediately; otherwise each query is sent by the QueryEngine of this service, and
+     * the next step of the lookup (following a referral, or finding the address of a nameserver) starts when its
+     * response arrives, so any number of lookups can be in progress without a thread waiting for each of them.
+     * <p>
+     * Stages added to the future without an executor may run on the thread of the QueryEngine, and must not block.
+     *
+     * @param question Host and record type to be used for search.
+     * @return A future completed with the results as returned by getResults, or completed exceptionally with a
+     * LookupFailedException if no nameserver answered (after all attempts) or a response could not be decoded.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResultsAsync(DNSQuestion question) {
+        CachedResults results = cache.getCachedResults(question, true);
+        if (!results.isEmpty() || results.isNegative())
+            return CompletableFuture.completedFuture(results);
+        CachedResults stale = cache.getStaleResults(question, true);
+        if (stale.isEmpty())
+            return resolveAsync(question, null, 0).thenApply(done -> cache.getCachedResults(question, true));
 
-        Collection<ResourceRecord> results = cache.getCachedResults(question, true);
-        if (results.isEmpty()) {
-            iterativeQuery(question, nameServer);
-            results = cache.getCachedResults(question, true);
+        // The stale window may have been set by another service sharing the cache: without background lookups of its
+        // own, this service resolves the question itself, which goes on after the deadline all the same
+        DNSLookupService background;
+        synchronized (this) {
+            background = backgroundService;
         }
-        return results;
+        CompletableFuture<Void> lookup = background != null ? resolveInBackground(question)
+                : resolveAsync(question, null, 0);
+        // The lookup is shared with other callers, so the deadline is applied to a copy of it
+        return lookup.copy()
+                .completeOnTimeout(null, staleAnswerDeadline, TimeUnit.MILLISECONDS)
+                .handle((done, failure) -> {
+                    // Without fresh results, the stale records are used, and the lookup goes on in the background
+                    CachedResults fresh = cache.getCachedResults(question, true);
+                    return fresh.isEmpty() && !fresh.isNegative() ? stale : fresh;
+                });
+    }
+
+    /**
+     * Resolves a question again, adding the results to the cache. Unlike a lookup, the resolution does not stop at the
+     * first referral just because the records being refreshed are still cached: only records that expire later than
+     * those count as an answer, so the refresh goes on to the authoritative servers.
+     *
+     * @param question Host name and record type/class to be resolved.
+     * @return A future completed when the resolution ends, or completed exceptionally with a LookupFailedException.
+     * @see #resolveAsync
+     */
+    private CompletableFuture<Void> refreshAsync(DNSQuestion question) {
+        return resolveAsync(question, null, cache.getLatestExpiration(question));
+    }
+
+    /**
+     * Resolves a question with iterative queries, adding the results to the cache. The lookup starts at the closest
+     * nameservers known to the cache (see DNSCache.getClosestZone), so that lookups under a zone that was
+     * already visited go straight to its nameservers, hedged like those of a referral. If that gives no result (e.g.,
+     * the nameservers no longer answer), the lookup is repeated from the configured nameserver.
+     * <p>
+     * If the question is already being resolved, the lookup waits for that resolution instead of querying the
+     * nameservers again (single-flight), so a burst of lookups of a name that is not cached sends its queries once.
+     * This includes the lookups of nameserver addresses nested in other lookups, unless waiting for the resolution in
+     * progress would make it wait for itself (e.g., a nameserver whose address is in its own zone, without glue), in
+     * which case the lookup resolves the question on its own.
+     *
+     * @param question      Host name and record type/class to be resolved.
+     * @param parent        The resolution that needs the address of a nameserver this question is for, or null.
+     * @param answeredAfter The time cached results must expire after to count as an answer, in milliseconds since the
+     *                      epoch, to refresh them (see refresh); 0 for any cached results.
+     * @return A future completed when the lookup ends, or completed exceptionally with a LookupFailedException.
+     */
+    private CompletableFuture<Void> resolveAsync(DNSQuestion question, Resolution parent, long answeredAfter) {
+        Resolution resolution = new Resolution(question, parent == null ? 0 : parent.depth + 1, answeredAfter);
+        synchronized (resolutions) {
+            Resolution existing = resolutions.putIfAbsent(question, resolution);
+            if (existing != null && (parent == null || !existing.waitsFor(parent))) {
+                if (parent != null)
+                    parent.waitingFor = existing;
+                return existing.future;
+            }
+            // Either a new resolution, or one that cannot be shared, which is not registered
+            if (parent != null)
+                parent.waitingFor = resolution;
+        }
+
+        InetAddress root = nameServer;
+        DomainName zone = cache.getClosestZone(question.getDomainName());
+        List<InetAddress> servers = zone == null ? new ArrayList<>() : cache.getNameServers(zone);
+        servers.remove(root);
+        CompletableFuture<Void> lookup;
+        if (servers.isEmpty())
+            lookup = iterativeQueryAsync(question, List.of(root), resolution, DomainName.ROOT);
+        else
+            lookup = iterativeQueryAsync(question, servers, resolution, zone)
+                    .handle((done, failure) -> failure == null && isAnswered(resolution)
+                            ? CompletableFuture.<Void>completedFuture(null)
+                            : iterativeQueryAsync(question, List.of(root), resolution, DomainName.ROOT))
+                    .thenCompose(Function.identity());
+        lookup.whenComplete((done, failure) -> {
+            resolutions.remove(question, resolution);
+            if (failure == null)
+                resolution.future.complete(null);
+            else
+                resolution.future.completeExceptionally(unwrap(failure));
+        });
+        return resolution.future;
+    }
+
+    /**
+     * Returns true if the cache has an answer, positive or negative, for the question.
+     */
+    private boolean hasResults(DNSQuestion question) {
+        CachedResults results = cache.getCachedResults(question, true);
+        return !results.isEmpty() || results.isNegative();
+    }
+
+    /**
+     * Returns true if the cache has an answer for the question of a resolution that counts for it: any answer, or for
+     * a refresh, one that expires later than the results being refreshed.
+     */
+    private boolean isAnswered(Resolution resolution) {
+        if (resolution.answeredAfter == 0)
+            return hasResults(resolution.question);
+        return cache.getLatestExpiration(resolution.question) > resolution.answeredAfter;
     }
 
     /**
@@ -113,13 +612,54 @@ public class DNSLookupService {
             newResults.add(record);
             if (record.getRecordType() == RecordType.CNAME) {
                 newResults.addAll(getResultsFollowingCNames(
-                        new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
+                        new DNSQuestion(record.getNameResult(), question.getRecordType(), question.getRecordClass()),
                         maxIndirectionLevels - 1));
             }
         }
         return newResults;
     }
 
+    /**
+     * Finds all the results for a specific question, following CNAME records, as getResultsFollowingCNames does,
+     * without blocking the calling thread (see getResultsAsync). The targets of several CNAME records are looked up at
+     * the same time.
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the results as returned by getResultsFollowingCNames, or completed
+     * exceptionally with a CNameIndirectionLimitException if there are more levels of CNAME records than
+     * maxIndirectionLevels, or with a LookupFailedException if one of the lookups fails.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResultsFollowingCNamesAsync(DNSQuestion question,
+                                                                                      int maxIndirectionLevels) {
+        if (maxIndirectionLevels < 0)
+            return CompletableFuture.failedFuture(new CNameIndirectionLimitException());
+
+        return getResultsAsync(question).thenCompose(directResults -> {
+            if (directResults.isEmpty() || question.getRecordType() == RecordType.CNAME)
+                return CompletableFuture.completedFuture(directResults);
+
+            Map<ResourceRecord, CompletableFuture<Collection<ResourceRecord>>> targets = new LinkedHashMap<>();
+            for (ResourceRecord record : directResults) {
+                if (record.getRecordType() == RecordType.CNAME)
+                    targets.put(record, getResultsFollowingCNamesAsync(new DNSQuestion(record.getNameResult(),
+                            question.getRecordType(), question.getRecordClass()), maxIndirectionLevels - 1));
+            }
+            if (targets.isEmpty())
+                return CompletableFuture.completedFuture(directResults);
+            return CompletableFuture.allOf(targets.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                List<ResourceRecord> newResults = new ArrayList<>();
+                for (ResourceRecord record : directResults) {
+                    newResults.add(record);
+                    CompletableFuture<Collection<ResourceRecord>> target = targets.get(record);
+                    if (target != null)
+                        newResults.addAll(target.join());
+                }
+                return newResults;
+            });
+        });
+    }
+
     /**
      * Retrieves DNS results from a specified DNS server using the iterative mode. After an individual query is sent and
      * its response is received (or times out), checks if an answer for the specified host exists. Resulting values
@@ -132,115 +672,271 @@ public class DNSLookupService {
      * of these servers. If at least one nameserver provided by the response to the first query has a known IP address
      * (either from this query or from a previous query), it must be used first, otherwise additional queries are
      * required to obtain the IP address of the nameserver before it is queried. Only one nameserver must be contacted
-     * for the follow-up query.
+     * for the follow-up query, unless it does not answer in time, in which case the next one is tried (see
+     * hedgedQuery).
      *
      * @param question Host name and record type/class to be used for the query.
      * @param server   Address of the server to be used for the first query.
      */
     public void iterativeQuery(DNSQuestion question, InetAddress server) {
-        Set<ResourceRecord> set = individualQueryProcess(question, server);
-        List<ResourceRecord> cacheResults = cache.getCachedResults(question, true);
-        // if there are no answers
-        if (cacheResults.isEmpty()) {
-            ResourceRecord rr = null;
-            InetAddress addr = server;
-            for (ResourceRecord r : set) {
-                String domain = r.getTextResult();
-                DNSQuestion q = new DNSQuestion(domain, RecordType.A, r.getRecordClass());
-                List<ResourceRecord> cacheResult2 = cache.getCachedResults(q, true);
-                if (cacheResult2.isEmpty()) {
-//                    iterativeQuery(q, nameServer);
-//                    cacheResult2 = cache.getCachedResults(q, true);
-                    continue;
-                }
-                rr = cacheResult2.get(0);
-                addr = rr.getInetResult();
-                iterativeQuery(question, addr);
-            }
+        try {
+            iterativeQueryAsync(question, List.of(server), new Resolution(question, 0, 0), DomainName.ROOT).join();
+        } catch (CompletionException e) {
+            // Whatever the servers that answered sent is in the cache
+        }
+    }
 
-            for (ResourceRecord r : set) {
-                String domain = r.getTextResult();
-                DNSQuestion q = new DNSQuestion(domain, RecordType.A, r.getRecordClass());
-                List<ResourceRecord> cacheResult2 = cache.getCachedResults(q, true);
-                if (cacheResult2.isEmpty()) {
-                    iterativeQuery(q, nameServer);
-                    cacheResult2 = cache.getCachedResults(q, true);
-//                    continue;
-                }
-                rr = cacheResult2.get(0);
-                addr = rr.getInetResult();
-                iterativeQuery(question, addr);
-            }
+    /**
+     * Performs iterativeQuery without blocking: each step starts when the response to the previous one arrives.
+     *
+     * @param question   Host name and record type/class to be used for the query.
+     * @param servers    Addresses of the servers to be used for the first query, hedged if there are several.
+     * @param resolution The resolution of the question this query is part of.
+     * @param zone       The zone the servers are nameservers of; the root zone for the configured nameserver.
+     * @return A future completed when the lookup ends, or completed exceptionally with a LookupFailedException if the
+     * first servers, or every nameserver of a referral, did not answer.
+     */
+    private CompletableFuture<Void> iterativeQueryAsync(DNSQuestion question, List<InetAddress> servers,
+                                                        Resolution resolution, DomainName zone) {
+        return hedgedQuery(question, servers)
+                .thenCompose(nameservers -> followReferral(question, nameservers, resolution, 1, zone));
+    }
 
+    /**
+     * Follows the referral in a response to a question: sends the question to one of the nameservers, preferring the
+     * ones whose address is cached, and follows the referral in its response in turn, until the response is not a
+     * referral. The nameservers whose address is cached are queried first, fastest first and hedged (see
+     * hedgedQuery); the others are queried one at a time if none of them answers.
+     * <p>
+     * A referral from the nameservers of a zone to a zone under it, on the way to the question, is recorded as a zone
+     * cut in the cache (see DNSCache.addDelegation), so later lookups under that zone can start there. Any other
+     * referral is still followed, but neither it nor the referrals that follow from it are recorded: a nameserver
+     * could otherwise make itself the starting point of every lookup under a zone it is not responsible for.
+     *
+     * @param nameservers The NS records of the referral, empty if the response was not a referral.
+     * @param referrals   The number of referrals followed so far, including this one.
+     * @param zone        The zone of the nameservers that sent the referral, or null if they were themselves reached
+     *                    through a referral that was not recorded.
+     */
+    private CompletableFuture<Void> followReferral(DNSQuestion question, Set<ResourceRecord> nameservers,
+                                                   Resolution resolution, int referrals, DomainName zone) {
+        if (nameservers.isEmpty() || isAnswered(resolution))
+            return CompletableFuture.completedFuture(null);
+        if (referrals > MAX_REFERRALS)
+            return CompletableFuture.failedFuture(new LookupFailedException(question, "Too many referrals", null));
+        DomainName delegated = delegatedZone(question, nameservers, zone);
+        if (delegated != null)
+            cache.addDelegation(delegated);
+
+        List<InetAddress> known = new ArrayList<>();
+        List<DomainName> unknown = new ArrayList<>();
+        for (ResourceRecord record : nameservers) {
+            InetAddress address = cachedAddress(record.getNameResult());
+            if (address == null)
+                unknown.add(record.getNameResult());
+            else if (!known.contains(address))
+                known.add(address);
+        }
+        CompletableFuture<Set<ResourceRecord>> response = known.isEmpty()
+                ? queryNameServers(question, unknown, 0, resolution, null)
+                : hedgedQuery(question, known)
+                        .handle((next, failure) -> failure == null ? CompletableFuture.completedFuture(next)
+                                : queryNameServers(question, unknown, 0, resolution, unwrap(failure)))
+                        .thenCompose(Function.identity());
+        return response.thenCompose(next -> followReferral(question, next, resolution, referrals + 1, delegated));
+    }
+
+    /**
+     * Returns the zone a referral delegates to, if the referral is in bailiwick: its NS records all have the same
+     * owner, which is under the zone of the nameservers that sent it, and encloses the name of the question.
+     *
+     * @param zone The zone of the nameservers that sent the referral, or null if it is not known.
+     * @return The delegated zone, or null if the referral is not in bailiwick.
+     */
+    private static DomainName delegatedZone(DNSQuestion question, Set<ResourceRecord> nameservers, DomainName zone) {
+        if (zone == null) return null;
+        DomainName delegated = null;
+        for (ResourceRecord record : nameservers) {
+            DomainName owner = record.getQuestion().getDomainName();
+            if (delegated != null && owner != delegated) return null;
+            delegated = owner;
         }
+        if (delegated == null || delegated == zone || !delegated.isWithin(zone)
+                || !question.getDomainName().isWithin(delegated))
+            return null;
+        return delegated;
+    }
+
+    /**
+     * Sends a question to the nameservers at the given addresses, fastest first (by median round-trip time, see
+     * RttEstimator), until one of them answers. The next nameserver is queried as soon as the last one fails, or if
+     * the last one has not answered after the HEDGE_PERCENTILE of its recent round-trip times, in which case it is
+     * still waited for. The first response wins, and the queries still in flight are cancelled, which stops their
+     * retransmissions. A nameserver that does not answer then delays the lookup by about its usual round-trip time,
+     * instead of SO_TIMEOUT for each attempt.
+     *
+     * @return A future completed with the NS records of the first response, or completed exceptionally with the
+     * failure of the last nameserver if none answers.
+     */
+    private CompletableFuture<Set<ResourceRecord>> hedgedQuery(DNSQuestion question, List<InetAddress> servers) {
+        if (servers.size() == 1)
+            return individualQueryAsync(question, servers.get(0));
+        List<InetAddress> sorted = new ArrayList<>(servers);
+        sorted.sort(Comparator.comparingLong(server -> rtt.percentile(server, 50)));
+        HedgedQuery hedged = new HedgedQuery(question, sorted);
+        hedged.send(0);
+        return hedged.result;
+    }
+
+    /**
+     * Returns how long to wait for a response from a nameserver before also querying the next one, in milliseconds.
+     */
+    private long hedgeDelay(InetAddress server) {
+        return Math.max(MIN_HEDGE_DELAY, Math.min(SO_TIMEOUT, rtt.percentile(server, HEDGE_PERCENTILE)));
+    }
+
+    /**
+     * Sends a question to the nameservers of a list, starting at the given index, until one of them answers, one at a
+     * time. The address of a nameserver that is not cached is looked up first.
+     *
+     * @return A future completed with the NS records of the response of the first nameserver that answers, or
+     * completed exceptionally with the failure of the last one if none does.
+     */
+    private CompletableFuture<Set<ResourceRecord>> queryNameServers(DNSQuestion question, List<DomainName> nameservers,
+                                                                   int index, Resolution resolution,
+                                                                   Throwable lastFailure) {
+        if (index == nameservers.size())
+            return CompletableFuture.failedFuture(lastFailure != null ? lastFailure
+                    : new LookupFailedException(question, "No nameserver in the referral", null));
+        return addressOf(nameservers.get(index), resolution)
+                .thenCompose(address -> individualQueryAsync(question, address))
+                .handle((next, failure) -> failure == null ? CompletableFuture.completedFuture(next)
+                        : queryNameServers(question, nameservers, index + 1, resolution, unwrap(failure)))
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns the address of a nameserver, looking it up if it is not cached.
+     */
+    private CompletableFuture<InetAddress> addressOf(DomainName nameserver, Resolution resolution) {
+        InetAddress address = cachedAddress(nameserver);
+        if (address != null)
+            return CompletableFuture.completedFuture(address);
+        DNSQuestion question = new DNSQuestion(nameserver, RecordType.A, RecordClass.IN);
+        if (resolution.depth >= MAX_INDIRECTION_LEVEL_NS)
+            return CompletableFuture.failedFuture(new LookupFailedException(question,
+                    "Too many levels of nameservers without a known address", null));
+        return resolveAsync(question, resolution, 0).handle((done, failure) -> {
+            resolution.waitingFor = null;
+            InetAddress found = cachedAddress(nameserver);
+            return found != null ? CompletableFuture.completedFuture(found)
+                    : CompletableFuture.<InetAddress>failedFuture(new LookupFailedException(question, "No address",
+                    unwrap(failure)));
+        }).thenCompose(Function.identity());
+    }
 
+    /**
+     * Returns the address of a nameserver if one is cached, or null otherwise.
+     */
+    private InetAddress cachedAddress(DomainName nameserver) {
+        for (ResourceRecord record : cache.getCachedResults(new DNSQuestion(nameserver, RecordType.A, RecordClass.IN),
+                false)) {
+            if (record.getInetResult() != null)
+                return record.getInetResult();
+        }
+        return null;
     }
 
     /**
      * Handles the process of sending an individual DNS query with a single question. Builds and sends the query (request)
-     * message, then receives and parses the response. Received responses that do not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the request is sent again, with the same
-     * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which the function should return
-     * without changing any values. If a response is received, all of its records are added to the cache.
+     * message, then receives and parses the response. Only a response with the transaction ID and the question of the
+     * query, from the server it was sent to, is accepted. If no response is received after SO_TIMEOUT milliseconds, the
+     * request is sent again, with the same transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times,
+     * after which the function should return without changing any values. If a response is received, all of its
+     * records are added to the cache. If the response is truncated (TC bit set), the query is sent again over TCP, and
+     * only the TCP response is processed; if that fails, the query is treated as having received no response.
      * <p>
-     * The method verbose.printQueryToSend() must be called every time a new query message is about to be sent.
+     * The query is sent, and retransmitted, by the QueryEngine of this service, so queries from several threads share
+     * its channel and are in flight at the same time. The method verbose.printQueryToSend() must be called every time
+     * a new query message is about to be sent.
      *
      * @param question Host name and record type/class to be used for the query.
      * @param server   Address of the server to be used for the query.
-     * @return If no response is received, returns null. Otherwise, returns a set of resource records for all
-     * nameservers received in the response. Only records found in the nameserver section of the response are included,
-     * and only those whose record type is NS. If a response is received but there are no nameservers, returns an empty
-     * set.
+     * @return If no response is received, or it cannot be decoded, returns null. Otherwise, returns a set of resource
+     * records for all nameservers received in the response. Only records found in the nameserver section of the
+     * response are included, and only those whose record type is NS. If a response is received but there are no
+     * nameservers, returns an empty set.
      */
     protected Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server) {
-        Set<ResourceRecord> set = new HashSet<>();
-        DNSMessage msg = buildQuery(question);
-//        byte[] getUsed = msg.getUsed();
-        int len = msg.MAX_DNS_MESSAGE_LENGTH;
-//        byte[] data = java.util.Arrays.copyOf(getUsed, len);
-        byte[] data = msg.getUsed();
-//        int len = data.length;
-//        System.out.println("Sending data of length: " + data.length);
-        DatagramPacket dp = new DatagramPacket(data, data.length, server, DEFAULT_DNS_PORT);
         try {
-//            socket.connect(server, DEFAULT_DNS_PORT);
-            socket.setSoTimeout(SO_TIMEOUT);
+            return individualQueryAsync(question, server).join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
 
+    /**
+     * Performs individualQueryProcess without blocking. A truncated response is repeated over TCP on a separate
+     * thread, as TCP queries block.
+     *
+     * @return A future completed with the NS records of the response, or completed exceptionally with a
+     * LookupFailedException whose cause is the SocketTimeoutException or IOException of the query, or the exception
+     * thrown while decoding the response.
+     */
+    private CompletableFuture<Set<ResourceRecord>> individualQueryAsync(DNSQuestion question, InetAddress server) {
+        DNSMessage msg = buildQuery(question);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+        CompletableFuture<DNSMessage> sent = engine.query(question, msg, server, SO_TIMEOUT, MAX_QUERY_ATTEMPTS, () -> {
+            attempts.incrementAndGet();
             verbose.printQueryToSend(question, server, msg.getID());
-            socket.send(dp);
-
-            byte[] responseData = java.util.Arrays.copyOf(data, len);
-            DatagramPacket responseDP = new DatagramPacket(responseData, len, server, DEFAULT_DNS_PORT);
-            int queryAttempt = 0;
-            for (queryAttempt= 0; queryAttempt < MAX_QUERY_ATTEMPTS; queryAttempt++) {
-                try {
-                    socket.receive(responseDP);
-                    // need to check if response is null, for same query, and not a response
-                    DNSMessage response = new DNSMessage(responseDP.getData(), responseDP.getLength());
-                    if (response.getID() != msg.getID() || !response.getQR()) {
-                        responseDP = new DatagramPacket(responseData, len, server, DEFAULT_DNS_PORT);
-                        verbose.printQueryToSend(question, server, msg.getID());
-                        socket.send(dp);
-                    } else {
-                        set = processResponse(response);
-                        break;
+        });
+        sent.whenComplete((response, failure) -> {
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            // The round-trip time of a retransmitted query is ambiguous, so it is not measured (Karn's algorithm)
+            if (failure == null && attempts.get() == 1)
+                rtt.record(server, elapsed);
+            else if (failure instanceof SocketTimeoutException)
+                rtt.record(server, SO_TIMEOUT);
+            else if (failure instanceof CancellationException)
+                rtt.recordCensored(server, elapsed); // hedged over, the server took at least that long
+        });
+        CompletableFuture<Set<ResourceRecord>> result = sent
+                .thenCompose(response -> {
+                    try {
+                        if (!response.getTC())
+                            return CompletableFuture.completedFuture(processResponse(response));
+                    } finally {
+                        engine.release(response);
                     }
-                } catch (SocketTimeoutException e) {
-                    responseDP = new DatagramPacket(responseData, len, server, DEFAULT_DNS_PORT);
+                    // The answer did not fit in a datagram, so the whole query is repeated over TCP
                     verbose.printQueryToSend(question, server, msg.getID());
-                    socket.send(dp);
-                }
-            }
-            // ran out of queries
-            if (queryAttempt == MAX_QUERY_ATTEMPTS) {
-                return null;
-            }
-        } catch (Exception e) {
+                    return CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return processResponse(tcpConnections.query(server, msg, SO_TIMEOUT));
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, tcpExecutor);
+                })
+                .handle((nameservers, failure) -> {
+                    // A cancelled query may still be in the middle of a retransmission, so its buffer is not reused
+                    if (!(unwrap(failure) instanceof CancellationException))
+                        messagePool.release(msg);
+                    if (failure != null)
+                        throw new CompletionException(new LookupFailedException(question,
+                                "No usable response from " + server.getHostAddress(), unwrap(failure)));
+                    return nameservers;
+                });
+        result.whenComplete((nameservers, failure) -> {
+            if (failure instanceof CancellationException)
+                sent.cancel(false); // stops the retransmissions
+        });
+        return result;
+    }
 
-        }
-//        socket.close();
-//        socket.disconnect();
-        return set;
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
     }
 
     /**
@@ -248,7 +944,8 @@ public class DNSLookupService {
      * A random transaction ID must be generated and filled in the corresponding part of the query. The query
      * must be built as an iterative (non-recursive) request for a regular query with a single question. When the
      * function returns, the message's buffer's position (`message.buffer.position`) must be equivalent
-     * to the size of the query data.
+     * to the size of the query data. Unless EDNS is disabled, the question is followed by an OPT record advertising
+     * the payload size set with setEDNSPayloadSize.
      *
      * @param question    Host name and record type/class to be used for the query.
      * @return The DNSMessage containing the query.
@@ -256,19 +953,22 @@ public class DNSLookupService {
     protected DNSMessage buildQuery(DNSQuestion question) {
         // generate random id
         int r = random.nextInt();
-        //create DNSMessage
-        DNSMessage msg = new DNSMessage((short) r);
+        //create DNSMessage, reusing a pooled buffer if one is available
+        DNSMessage msg = messagePool.acquire((short) r);
         // add question to the message
         msg.addQuestion(question);
+        if (ednsPayloadSize > 0)
+            msg.addOPT(ednsPayloadSize);
         return msg;
     }
 
     /**
      * Parses and processes a response received by a nameserver. Adds all resource records found in the response message
      * to the cache. Calls methods in the verbose object at appropriate points of the processing sequence. Must be able
-     * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any
-     * other unsupported record type must create a record object with the data represented as a hex string (see method
-     * byteArrayToHexString).
+     * to properly parse records of the types: A, AAAA, NS, CNAME, PTR and MX (the priority field for MX may be
+     * ignored), as well as SOA, SRV and TXT (as typed RecordData). Any other unsupported record type must create a
+     * record object with its raw data (shown as a hex string). A negative answer (NXDOMAIN, or NOERROR without answers
+     * nor nameservers) that includes the SOA record of the zone is also cached, for the question of the response.
      *
      * @param response The DNSMessage received from the server.
      * @return A set of resource records for all nameservers received in the response. Only records found in the
@@ -282,18 +982,13 @@ public class DNSLookupService {
         int errCode = response.getRcode();
         verbose.printResponseHeaderInfo(id, auth, errCode);
 
-        int qdcount = response.getQDCount();
-        for(int i = 0; i < qdcount; i++) {
-            DNSQuestion question = response.getQuestion();
-        }
-
         // get resource records in answer section & add to cache
         int ancount = response.getANCount();
         verbose.printAnswersHeader(ancount);
         for(int i = 0; i < ancount; i++) {
-            ResourceRecord anrr = response.getRR();
-            int rtcode = anrr.getRecordType().getCode();
-            int rccode = anrr.getRecordClass().getCode();
+            ResourceRecord anrr = response.getAnswer(i);
+            int rtcode = anrr.getQuestion().getTypeCode();
+            int rccode = anrr.getQuestion().getClassCode();
             verbose.printIndividualResourceRecord(anrr, rtcode, rccode);
             cache.addResult(anrr);
         }
@@ -301,13 +996,16 @@ public class DNSLookupService {
         // get resource records in name server section & add to cache
         int nscount = response.getNSCount();
         verbose.printNameserversHeader(nscount);
+        ResourceRecord soa = null;
         for(int i = 0; i < nscount; i++) {
-            ResourceRecord rr = response.getRR();
+            ResourceRecord rr = response.getAuthority(i);
             if (rr.getRecordType() == RecordType.NS) {
                 rrset.add(rr);
+            } else if (rr.getRecordType() == RecordType.SOA && rr.getDataResult() instanceof RecordData.SOA) {
+                soa = rr;
             }
-            int rtcode = rr.getRecordType().getCode();
-            int rccode = rr.getRecordClass().getCode();
+            int rtcode = rr.getQuestion().getTypeCode();
+            int rccode = rr.getQuestion().getClassCode();
             verbose.printIndividualResourceRecord(rr, rtcode, rccode);
             cache.addResult(rr);
         }
@@ -316,25 +1014,159 @@ public class DNSLookupService {
         int arcount = response.getARCount();
         verbose.printAdditionalInfoHeader(arcount);
         for(int i = 0; i < arcount; i++) {
-            ResourceRecord arrr = response.getRR();
-            int rtcode = arrr.getRecordType().getCode();
-            int rccode = arrr.getRecordClass().getCode();
+            ResourceRecord arrr = response.getAdditional(i);
+            int rtcode = arrr.getQuestion().getTypeCode();
+            int rccode = arrr.getQuestion().getClassCode();
             verbose.printIndividualResourceRecord(arrr, rtcode, rccode);
-            cache.addResult(arrr);
+            // The OPT pseudo-record only describes this message, so it is not cached
+            if (arrr.getRecordType() != RecordType.OPT)
+                cache.addResult(arrr);
+        }
+
+        // An NXDOMAIN, or a NOERROR without answers nor referral, is a negative answer for the question. It can only
+        // be cached with the SOA record of the zone, which gives its TTL (RFC 2308).
+        if (soa != null && response.getQDCount() > 0 && ancount == 0 && rrset.isEmpty()
+                && (errCode == 3 || errCode == 0)) {
+            cache.addNegativeResult(new NegativeAnswer(response.getQuestion(0),
+                    errCode == 3 ? NegativeAnswer.Kind.NXDOMAIN : NegativeAnswer.Kind.NODATA, soa));
         }
         return rrset;
     }
+    public static class CNameIndirectionLimitException extends Exception {
+    }
+
     /**
-     * Helper function that converts a hex string representation of a byte array. May be used to represent the result of
-     * records that are returned by the nameserver but not supported by the application (e.g., SOA records).
-     *
-     * @param data a byte array containing the record data.
-     * @return A string containing the hex value of every byte in the data.
+     * A question sent to several nameservers in turn by hedgedQuery. Each nameserver is queried at most once.
      */
-    private static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+    private final class HedgedQuery {
+        private final DNSQuestion question;
+        private final List<InetAddress> servers;
+        private final CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+        private final Queue<CompletableFuture<Set<ResourceRecord>>> queries = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger sent = new AtomicInteger(); // the number of servers queried so far
+        private final AtomicInteger failed = new AtomicInteger();
+
+        HedgedQuery(DNSQuestion question, List<InetAddress> servers) {
+            this.question = question;
+            this.servers = servers;
+        }
+
+        /**
+         * Queries the server at the given index, unless it was queried already or a response was received.
+         */
+        void send(int index) {
+            if (index >= servers.size() || result.isDone() || !sent.compareAndSet(index, index + 1)) return;
+            InetAddress server = servers.get(index);
+            CompletableFuture<Set<ResourceRecord>> query = individualQueryAsync(question, server);
+            queries.add(query);
+            if (result.isDone()) // the winner may have cancelled the others before this one was added
+                query.cancel(false);
+            if (index + 1 < servers.size())
+                CompletableFuture.delayedExecutor(hedgeDelay(server), TimeUnit.MILLISECONDS)
+                        .execute(() -> send(index + 1));
+            query.whenComplete((nameservers, failure) -> {
+                if (failure == null) {
+                    if (result.complete(nameservers))
+                        queries.forEach(other -> other.cancel(false));
+                } else if (failed.incrementAndGet() == servers.size()) {
+                    result.completeExceptionally(unwrap(failure));
+                } else {
+                    send(sent.get());
+                }
+            });
+        }
     }
 
-    public static class CNameIndirectionLimitException extends Exception {
+    /**
+     * A lookup of a question in the background, waiting for its turn or in progress.
+     */
+    private static final class BackgroundLookup {
+        private final DNSLookupService service;
+        private final DNSQuestion question;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        BackgroundLookup(DNSLookupService service, DNSQuestion question) {
+            this.service = service;
+            this.question = question;
+        }
+    }
+
+    /**
+     * The resolution of a question in progress, which other lookups of the same question can wait for.
+     */
+    private static final class Resolution {
+        private final DNSQuestion question;
+        /** The number of nameserver address lookups this resolution is nested in. */
+        private final int depth;
+        /** The time cached results must expire after to answer the question, or 0 for any results (see refresh). */
+        private final long answeredAfter;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /**
+         * The resolution of a nameserver address this one is waiting for, if any. Only set while resolutions is
+         * locked, after checking that it does not wait for this one, so resolutions never wait for each other in a
+         * cycle.
+         */
+        private volatile Resolution waitingFor;
+
+        Resolution(DNSQuestion question, int depth, long answeredAfter) {
+            this.question = question;
+            this.depth = depth;
+            this.answeredAfter = answeredAfter;
+        }
+
+        /**
+         * Returns true if this resolution is, or waits (directly or not) for, the other one.
+         */
+        boolean waitsFor(Resolution other) {
+            for (Resolution resolution = this; resolution != null; resolution = resolution.waitingFor) {
+                if (resolution == other) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The reason a lookup failed, as the cause of the exception of a failed future: no nameserver answered (after all
+     * attempts), a response could not be decoded, or the referrals did not lead to an answer. The records received
+     * before the failure are still cached.
+     */
+    public static class LookupFailedException extends IOException {
+        private final DNSQuestion question;
+
+        public LookupFailedException(DNSQuestion question, String message, Throwable cause) {
+            super(question + ": " + message, cause);
+            this.question = question;
+        }
+
+        /**
+         * Returns the question that could not be resolved, which may be the address of a nameserver needed by the
+         * lookup rather than the question of the lookup itself.
+         */
+        public DNSQuestion getQuestion() {
+            return question;
+        }
+    }
+
+    /**
+     * A printer for lookups that run in the background, which prints nothing.
+     */
+    private static class SilentPrinter implements DNSVerbosePrinter {
+        public void printQueryToSend(DNSQuestion question, InetAddress server, int transactionID) {
+        }
+
+        public void printResponseHeaderInfo(int receivedTransactionId, boolean authoritative, int errorCode) {
+        }
+
+        public void printAnswersHeader(int num_answers) {
+        }
+
+        public void printNameserversHeader(int num_nameservers) {
+        }
+
+        public void printAdditionalInfoHeader(int num_additional) {
+        }
+
+        public void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode) {
+        }
     }
 }
@@ -1,41 +1,61 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.net.InetAddress;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 public class DNSMessage {
     public static final int MAX_DNS_MESSAGE_LENGTH = 512;
-    private final Map<String, Integer> nameToPosition = new HashMap<>();
-    private final Map<Integer, String> positionToName = new HashMap<>();
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    public static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+    public static final int MAX_NAME_LENGTH = 255;
+    private final CompressionTable compression = new CompressionTable();
+    // Wire format of the name being added, and the position and hash of each of its labels in it
+    private final byte[] wireScratch = new byte[MAX_NAME_LENGTH + 1];
+    private final char[] nameScratch = new char[MAX_NAME_LENGTH];
     private final ByteBuffer buffer;
+    private int ednsPayloadSize;
+    // Offsets of every question, followed by every resource record, valid while indexed is true
+    private int[] recordOffsets = new int[16];
+    private boolean indexed;
+    private DNSQuestion lastQuestion;
 
     public static final int QUERY = 0;
 
+    /**
+     * Sections of a message that contain resource records, for use with getRR(section, index).
+     */
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
     /**
      * Initializes an empty DNSMessage with the given id.
      *
      * @param id The id of the message.
      */
     public DNSMessage(short id) {
-        this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
-        // code for header
-        buffer.putShort(id); // id: short
-        buffer.put((byte) 0); // qr, opcode, aa, tc, rd
-        buffer.put((byte) 0); // ra, z, rcode
-        buffer.put((byte) 0); // qd count
-        buffer.put((byte) 0);
-        buffer.put((byte) 0); // an count
-        buffer.put((byte) 0);
-        buffer.put((byte) 0); // ns count
-        buffer.put((byte) 0);
-        buffer.put((byte) 0); // ar count
-        buffer.put((byte) 0);
-        buffer.position(12);
+        this(id, MAX_DNS_MESSAGE_LENGTH);
+    }
 
+    /**
+     * Initializes an empty DNSMessage with the given id, whose buffer can hold up to capacity bytes.
+     * Messages used to receive EDNS responses must be at least as large as the advertised payload size.
+     *
+     * @param id The id of the message.
+     * @param capacity The size of the buffer, in bytes.
+     */
+    public DNSMessage(short id, int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+        reset(id);
+    }
+
+    /**
+     * Returns the maximum number of bytes this message can hold.
+     */
+    public int getCapacity() {
+        return buffer.capacity();
     }
 
     /**
@@ -49,6 +69,59 @@ public class DNSMessage {
         buffer.position(12);
     }
 
+    /**
+     * Initializes a DNSMessage that decodes the remaining bytes of the given buffer in place, without copying them
+     * (e.g., a message in a memory-mapped file).
+     *
+     * @param data The buffer containing the message, from its position to its limit
+     */
+    DNSMessage(ByteBuffer data) {
+        buffer = data.slice();
+        buffer.position(12);
+    }
+
+    /**
+     * Clears this message so it can be reused for a new query with the given id, keeping its buffer and compression
+     * map. After this call the message is in the same state as one just created with DNSMessage(id).
+     *
+     * @param id The id of the message.
+     */
+    void reset(short id) {
+        buffer.clear();
+        Arrays.fill(buffer.array(), 0, 12, (byte) 0);
+        buffer.putShort(0, id);
+        buffer.position(12);
+        compression.clear();
+        ednsPayloadSize = 0;
+        indexed = false;
+    }
+
+    /**
+     * Returns the buffer of this message, cleared, so a response can be received directly into it. Must be followed
+     * by a call to received() once the data is in the buffer.
+     */
+    ByteBuffer receiveBuffer() {
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Prepares this message for decoding after a response was received into receiveBuffer(). The data received is
+     * everything up to the current position of that buffer.
+     *
+     * @return false if the data is too short to hold a header, in which case the message must not be decoded.
+     */
+    boolean received() {
+        buffer.flip();
+        if (buffer.limit() < 12)
+            return false;
+        buffer.position(12);
+        compression.clear();
+        ednsPayloadSize = 0;
+        indexed = false;
+        return true;
+    }
+
     /**
      * Getters and setters for the various fixed size and fixed location fields of a DNSMessage
      */
@@ -187,53 +260,104 @@ public class DNSMessage {
 
     public void setQDCount(int count) {
         buffer.putShort(4, (short) count);
+        indexed = false;
     }
 
     public int getANCount() {
         return (buffer.getShort(6) & 0xFFFF);
     }
 
+    public void setANCount(int count) {
+        buffer.putShort(6, (short) count);
+        indexed = false;
+    }
+
     public int getNSCount() {
         return (buffer.getShort(8) & 0xFFFF);
     }
 
+    public void setNSCount(int count) {
+        buffer.putShort(8, (short) count);
+        indexed = false;
+    }
+
     public int getARCount() {
         return (buffer.getShort(10) & 0xFFFF);
     }
 
     public void setARCount(int count) {
         buffer.putShort(10, (short) count);
+        indexed = false;
+    }
+
+    /**
+     * Return the name at the current position() of the buffer, and advance the position past it.
+     *
+     * @return The decoded name, lower-cased
+     * @throws MalformedMessageException If the name is invalid (see getDomainName()).
+     */
+    public String getName() {
+        return getDomainName().toString();
     }
 
     /**
-     * Return the name at the current position() of the buffer.  This method is provided for you,
-     * but you should ensure that you understand what it does and how it does it.
+     * Return the name at the current position() of the buffer, and advance the position past it.
+     *
+     * Labels and compression pointers are walked in place, without recursion. The decoded characters
+     * (lower-cased) and the uncompressed wire format are collected in scratch arrays that are reused
+     * for every name in the message, and the DomainName is obtained from the shared NameTable, so
+     * names seen before (which is most of them in referrals) do not allocate at all.
      *
-     * The trick is to keep track of all the positions in the message that contain names, since
-     * they can be the target of a pointer.  We do this by storing the mapping of position to
-     * name in the positionToName map.
+     * Every compression pointer must point before the start of the segment currently being read.
+     * Since the segment start then strictly decreases, a message with a pointer loop is rejected
+     * instead of being followed forever.
      *
      * @return The decoded name
+     * @throws MalformedMessageException If the name contains a pointer loop, an unsupported label
+     *                                   type or is longer than MAX_NAME_LENGTH.
      */
-    public String getName() {
-        // Remember the starting position for updating the name cache
-        int start = buffer.position();
-        int len = buffer.get() & 0xff;
-        if (len == 0) return "";
-        if ((len & 0xc0) == 0xc0) {  // This is a pointer
-            int pointer = ((len & 0x3f) << 8) | (buffer.get() & 0xff);
-            String suffix = positionToName.get(pointer);
-            assert suffix != null;
-            positionToName.put(start, suffix);
-            return suffix;
+    public DomainName getDomainName() {
+        int length = 0;
+        int hash = 0;
+        int pos = buffer.position();
+        int segmentStart = pos;
+        int end = -1; // position right after the name, known once the first pointer is found
+        while (true) {
+            int len = buffer.get(pos) & 0xff;
+            if ((len & 0xc0) == 0xc0) {  // This is a pointer
+                int pointer = ((len & 0x3f) << 8) | (buffer.get(pos + 1) & 0xff);
+                if (end < 0) end = pos + 2;
+                if (pointer >= segmentStart)
+                    throw new MalformedMessageException("Compression pointer loop at offset " + pos);
+                segmentStart = pos = pointer;
+                continue;
+            }
+            if ((len & 0xc0) != 0)
+                throw new MalformedMessageException("Unsupported label type at offset " + pos);
+            // The name with this label, in dotted form, takes two bytes less than in wire format
+            if (len != 0 && (length == 0 ? len : length + 1 + len) + 2 > MAX_NAME_LENGTH)
+                throw new MalformedMessageException("Name too long at offset " + pos);
+            pos++;
+            if (len == 0) break;
+            // In wire format, the label length takes the place of the dot before the label
+            wireScratch[length == 0 ? 0 : length + 1] = (byte) len;
+            if (length > 0) {
+                nameScratch[length++] = '.';
+                hash = 31 * hash + '.';
+            }
+            for (int i = 0; i < len; i++) {
+                char c = (char) (buffer.get(pos + i) & 0xff);
+                if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                wireScratch[length + 1] = (byte) c;
+                nameScratch[length++] = c;
+                hash = 31 * hash + c;
+            }
+            pos += len;
         }
-        byte[] bytes = new byte[len];
-        buffer.get(bytes, 0, len);
-        String label = new String(bytes, StandardCharsets.UTF_8);
-        String suffix = getName();
-        String answer = suffix.isEmpty() ? label : label + "." + suffix;
-        positionToName.put(start, answer);
-        return answer;
+        buffer.position(end < 0 ? pos : end);
+        int wireLength = length == 0 ? 0 : length + 1;
+        wireScratch[wireLength] = 0;
+        return NameTable.intern(nameScratch, length, hash, wireScratch, wireLength + 1);
     }
 
     /**
@@ -312,92 +436,305 @@ public class DNSMessage {
      * @return The decoded question
      */
     public DNSQuestion getQuestion() {
-        String h = getName();
-        int recordType = buffer.getShort() & 0xFF;
-        int recordClass = buffer.getShort() & 0xFF;
-        RecordType rt = RecordType.getByCode(recordType);
-        RecordClass rc = RecordClass.getByCode(recordClass);
-        DNSQuestion q = new DNSQuestion(h, rt, rc);
-        return q;
-        //return null;
+        DomainName h = getDomainName();
+        int recordType = buffer.getShort() & 0xFFFF;
+        int recordClass = buffer.getShort() & 0xFFFF;
+        return new DNSQuestion(h, recordType, recordClass);
     }
 
     /**
      * Decode and return the resource record that appears next in the message.  The current
      * position in the buffer indicates where the resource record starts.
      *
+     * An OPT pseudo-record (EDNS) is returned as a record of type OPT for the root name; the UDP
+     * payload size it advertises is available from getEDNSPayloadSize().
+     *
      * @return The decoded resource record
      */
     public ResourceRecord getRR() {
-        DNSQuestion q = getQuestion();
-        RecordType rt = q.getRecordType();
-        RecordClass rc = q.getRecordClass();
-
+        DomainName name = getDomainName();
+        int typeCode = buffer.getShort() & 0xFFFF;
+        RecordType rt = RecordType.getByCode(typeCode);
+        int classCode = buffer.getShort() & 0xFFFF;
         int ttl = buffer.getInt();
-        // result is a string
-        int rlen = buffer.getShort() & 0xFF;
-        // resource record type checks
-        String result = "";
-        if (rt.equals(RecordType.A) || rt.equals(RecordType.AAAA)) {
-            byte[] data = new byte[rlen];
-            buffer.get(data, 0, rlen);
-            try {
-                InetAddress i = InetAddress.getByAddress(data);
-                return new ResourceRecord(q, ttl, i);
-            } catch (Exception e) {
-                // yeet
+        int rlen = buffer.getShort() & 0xFFFF;
+        // Whatever is decoded below, the next record starts right after this one's data
+        int end = buffer.position() + rlen;
+        try {
+            if (rt == RecordType.OPT) {
+                // The class of an OPT record holds the UDP payload size, and its TTL the extended flags
+                ednsPayloadSize = classCode;
+                return new ResourceRecord(new DNSQuestion(DomainName.ROOT, rt, RecordClass.OTHER), 0, getRawData(rlen));
+            }
+            DNSQuestion q = question(name, typeCode, classCode);
+            switch (rt) {
+                case A:
+                    if (rlen == 4)
+                        return new ResourceRecord(q, ttl, buffer.getInt());
+                    return new ResourceRecord(q, ttl, getRawData(rlen));
+                case AAAA:
+                    if (rlen == 16)
+                        return new ResourceRecord(q, ttl, buffer.getLong(), buffer.getLong());
+                    return new ResourceRecord(q, ttl, getRawData(rlen));
+                case CNAME:
+                case NS:
+                case PTR:
+                    return new ResourceRecord(q, ttl, getDomainName());
+                case MX:
+                    buffer.position(buffer.position() + 2); // preference is not kept
+                    return new ResourceRecord(q, ttl, getDomainName());
+                case SOA:
+                    return new ResourceRecord(q, ttl, new RecordData.SOA(getName(), getName(), buffer.getInt(),
+                            buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+                case SRV:
+                    return new ResourceRecord(q, ttl, new RecordData.SRV(buffer.getShort() & 0xFFFF,
+                            buffer.getShort() & 0xFFFF, buffer.getShort() & 0xFFFF, getName()));
+                case TXT:
+                    return new ResourceRecord(q, ttl, new RecordData.TXT(getBytes(rlen)));
+                default:
+                    return new ResourceRecord(q, ttl, getRawData(rlen));
             }
-        } else if (rt.equals(RecordType.CNAME) || rt.equals(RecordType.NS)) {
-            return new ResourceRecord(q, ttl, getName());
-        } else if (rt.equals(RecordType.MX)) {
-            int pos = buffer.position();
-            buffer.position(pos + 2);
-            return new ResourceRecord(q, ttl, getName());
+        } finally {
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * Returns a question for the given owner name, type and class. Consecutive records of the same RRset share the
+     * question object.
+     */
+    private DNSQuestion question(DomainName name, int typeCode, int classCode) {
+        DNSQuestion last = lastQuestion;
+        if (last != null && last.getDomainName() == name && last.getTypeCode() == typeCode &&
+                last.getClassCode() == classCode)
+            return last;
+        return lastQuestion = new DNSQuestion(name, typeCode, classCode);
+    }
+
+    /**
+     * Decode and return the question with the given index, regardless of the current position in
+     * the buffer (which is left unchanged).
+     *
+     * @param index The index of the question, starting at 0
+     * @return The decoded question
+     */
+    public DNSQuestion getQuestion(int index) {
+        index();
+        if (index < 0 || index >= getQDCount())
+            throw new IndexOutOfBoundsException("Question " + index + " of " + getQDCount());
+        int saved = buffer.position();
+        try {
+            buffer.position(recordOffsets[index]);
+            return getQuestion();
+        } finally {
+            buffer.position(saved);
+        }
+    }
+
+    /**
+     * Decode and return a resource record from a specific section, regardless of the current
+     * position in the buffer (which is left unchanged). Only that record is decoded; records before
+     * it, in the same or previous sections, are skipped using the offsets found by index().
+     *
+     * @param section ANSWER, AUTHORITY or ADDITIONAL
+     * @param index The index of the record in the section, starting at 0
+     * @return The decoded resource record
+     */
+    public ResourceRecord getRR(int section, int index) {
+        int saved = buffer.position();
+        try {
+            buffer.position(recordOffset(section, index));
+            return getRR();
+        } finally {
+            buffer.position(saved);
+        }
+    }
+
+    public ResourceRecord getAnswer(int index) {
+        return getRR(ANSWER, index);
+    }
+
+    public ResourceRecord getAuthority(int index) {
+        return getRR(AUTHORITY, index);
+    }
+
+    public ResourceRecord getAdditional(int index) {
+        return getRR(ADDITIONAL, index);
+    }
+
+    /**
+     * Returns the type of a resource record without decoding the rest of the record.
+     *
+     * @param section ANSWER, AUTHORITY or ADDITIONAL
+     * @param index The index of the record in the section, starting at 0
+     * @return The type of the record
+     */
+    public RecordType getRRType(int section, int index) {
+        return RecordType.getByCode(buffer.getShort(skipName(recordOffset(section, index))) & 0xFFFF);
+    }
+
+    private int recordOffset(int section, int index) {
+        index();
+        int first = getQDCount();
+        int count;
+        if (section == ANSWER) {
+            count = getANCount();
+        } else if (section == AUTHORITY) {
+            first += getANCount();
+            count = getNSCount();
+        } else if (section == ADDITIONAL) {
+            first += getANCount() + getNSCount();
+            count = getARCount();
         } else {
-            result = getName();
+            throw new IllegalArgumentException("Invalid section " + section);
         }
-        return new ResourceRecord(q, ttl, result);
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count + " in section " + section);
+        return recordOffsets[first + index];
     }
 
     /**
-     * Helper function that returns a hex string representation of a byte array. May be used to represent the result of
-     * records that are returned by a server but are not supported by the application (e.g., SOA records).
+     * Finds the offset of every question and resource record in a single pass over the message,
+     * skipping over names and record data without decoding them. The offsets are kept until the
+     * message is changed. The payload size of an OPT record, if any, is also picked up on the way.
      *
-     * @param data a byte array containing the record data.
-     * @return A string containing the hex value of every byte in the data.
+     * @throws MalformedMessageException If a record extends past the end of the message.
      */
-    private static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+    private void index() {
+        if (indexed) return;
+        int questions = getQDCount();
+        int total = questions + getANCount() + getNSCount() + getARCount();
+        if (recordOffsets.length < total)
+            recordOffsets = new int[total];
+        int pos = 12;
+        for (int i = 0; i < total; i++) {
+            recordOffsets[i] = pos;
+            pos = skipName(pos);
+            if (i < questions) {
+                pos += 4; // type, class
+            } else {
+                if (pos + 10 > buffer.limit())
+                    throw new MalformedMessageException("Record " + i + " extends past the end of the message");
+                if ((buffer.getShort(pos) & 0xFFFF) == RecordType.OPT.getCode())
+                    ednsPayloadSize = buffer.getShort(pos + 2) & 0xFFFF;
+                pos += 10 + (buffer.getShort(pos + 8) & 0xFFFF); // type, class, TTL, length and data
+            }
+            if (pos > buffer.limit())
+                throw new MalformedMessageException("Record " + i + " extends past the end of the message");
+        }
+        indexed = true;
+    }
+
+    /**
+     * Returns the offset right after the name that starts at pos, without decoding it.
+     */
+    private int skipName(int pos) {
+        while (true) {
+            if (pos >= buffer.limit())
+                throw new MalformedMessageException("Name extends past the end of the message");
+            int len = buffer.get(pos) & 0xff;
+            if ((len & 0xc0) == 0xc0) return pos + 2;
+            if ((len & 0xc0) != 0)
+                throw new MalformedMessageException("Unsupported label type at offset " + pos);
+            pos += len + 1;
+            if (len == 0) return pos;
+        }
+    }
+
+    /**
+     * Returns a copy of the next length bytes in the message.
+     */
+    private byte[] getBytes(int length) {
+        byte[] data = new byte[length];
+        buffer.get(data, 0, length);
+        return data;
+    }
+
+    /**
+     * Returns the next length bytes in the message as the data of a record of an unsupported type.
+     */
+    private RecordData.Raw getRawData(int length) {
+        return new RecordData.Raw(getBytes(length));
+    }
+
+    /**
+     * Returns the UDP payload size advertised by the OPT record of this message, or 0 if there is
+     * no OPT record (i.e., the sender does not support EDNS).
+     *
+     * @return The advertised payload size, in bytes
+     */
+    public int getEDNSPayloadSize() {
+        index();
+        return ednsPayloadSize;
     }
 
     /**
      * Add an encoded name to the message. It is added at the current position and uses compression
-     * as much as possible.  Compression is accomplished by remembering the position of every added
-     * label.
+     * as much as possible.
      *
      * @param name The name to be added
+     * @throws IllegalArgumentException If the name has an empty label, or one longer than 63 characters.
      */
     public void addName(String name) {
-        String label;
-        while (name.length() > 0) {
-            Integer offset = nameToPosition.get(name);
-            if (offset != null) {
-                int pointer = offset;
-                pointer |= 0xc000;
-                buffer.putShort((short)pointer);
-                return;
-            } else {
-                nameToPosition.put(name, buffer.position());
-                int dot = name.indexOf('.');
-                label = (dot > 0) ? name.substring(0, dot) : name;
-                buffer.put((byte)label.length());
-                for (int j = 0; j < label.length(); j++) {
-                    buffer.put((byte)label.charAt(j));
-                }
-                name = (dot > 0) ? name.substring(dot + 1) : "";
+        addName(DomainName.of(name));
+    }
+
+    /**
+     * Add an encoded name to the message. It is added at the current position and uses compression
+     * as much as possible.  Compression is accomplished by remembering the position of every added
+     * label in the compression table, which finds the longest suffix of the name already in the
+     * message. Only the labels before that suffix are copied from the precomputed wire format of the
+     * name (in a single copy), followed by a pointer to it.
+     *
+     * @param name The name to be added
+     */
+    public void addName(DomainName name) {
+        int last = compression.findLast(name);
+        if (last >= 0) {
+            buffer.putShort((short) (0xc000 | compression.offset(last)));
+            return;
+        }
+        byte[] wire = name.wire();
+        int labels = name.labelCount();
+
+        // Follow the labels from the right for as long as the suffix is already in the message
+        int node = CompressionTable.ROOT;
+        int matched = labels;
+        while (matched > 0) {
+            int child = compression.find(buffer.array(), node, wire, name.labelStart(matched - 1),
+                    name.labelHash(matched - 1));
+            if (child < 0) break;
+            node = child;
+            matched--;
+        }
+
+        int start = buffer.position();
+        if (matched < labels) {
+            buffer.put(wire, 0, name.labelStart(matched));
+            buffer.putShort((short) (0xc000 | compression.offset(node)));
+        } else {
+            buffer.put(wire);
+        }
+
+        // The new labels are the start of suffixes that later names can point to
+        for (int i = matched - 1; i >= 0; i--) {
+            int offset = start + name.labelStart(i);
+            if (offset > CompressionTable.MAX_POINTER_OFFSET) {
+                node = CompressionTable.ROOT;
+                break;
             }
+            node = compression.add(node, name.labelHash(i), offset);
         }
-        buffer.put((byte) 0);
+        compression.remember(name, node);
+    }
+
+    /**
+     * Add an encoded name to the message at the current position, without compression.
+     *
+     * @param name The name to be added
+     */
+    private void addUncompressedName(String name) {
+        buffer.put(DomainName.of(name).wire());
     }
 
     /**
@@ -405,9 +742,9 @@ public class DNSMessage {
      * @param question The question to be added
      */
     public void addQuestion(DNSQuestion question) {
-        String name = question.getHostName();
-        int rt = question.getRecordType().getCode();
-        int rc = question.getRecordClass().getCode();
+        DomainName name = question.getDomainName();
+        int rt = question.getTypeCode();
+        int rc = question.getClassCode();
         addName(name);
         buffer.putShort((short) rt);
         buffer.putShort((short) rc);
@@ -415,61 +752,95 @@ public class DNSMessage {
     }
 
     /**
-     * Add an encoded resource record to the message at the current position.
+     * Add an encoded resource record to the message at the current position. Records must be added
+     * in section order (all answers, then all nameservers, then all additional records).
      * @param rr The resource record to be added
+     * @param section The section the record is counted in: "answer", "nameserver" (or "authority")
+     *                or "additional"
      */
     public void addResourceRecord(ResourceRecord rr, String section) {
-        DNSQuestion q = rr.getQuestion();
         RecordType rt = rr.getRecordType();
-
-        if (rt.equals(RecordType.A) || rt.equals(RecordType.AAAA)) {
-            addName(q.getHostName());
-            addQType(rr.getRecordType());
-            addQClass(rr.getRecordClass());
-            long ttl = rr.getRemainingTTL();
-            buffer.putInt((int) ttl);
-            InetAddress addr = rr.getInetResult();
-            byte[] a = addr.getAddress();
-            buffer.putShort((short) a.length);
-            buffer.put(a);
-        } else if (rt.equals(RecordType.CNAME) || rt.equals(RecordType.NS)) {
-            addName(q.getHostName());
-            addQType(rr.getRecordType());
-            addQClass(rr.getRecordClass());
-            long ttl = rr.getRemainingTTL();
-            buffer.putInt((int) ttl);
-            String result = rr.getTextResult();
-            buffer.putShort((short) result.length());
-            addName(result);
-        } else if (rt.equals(RecordType.MX)) {
-            addName(q.getHostName());
-            addQType(rr.getRecordType());
-            addQClass(rr.getRecordClass());
-            long ttl = rr.getRemainingTTL();
-            buffer.putInt((int) ttl);
-            String result = rr.getTextResult();
-            buffer.putShort((short) result.length());
-            buffer.putShort((short) 0); //dummy short
-            addName(result);
+        RecordData data = rr.getDataResult();
+        boolean addressResult = (rt.equals(RecordType.A) || rt.equals(RecordType.AAAA)) && rr.hasAddress();
+        boolean nameResult = rt.equals(RecordType.CNAME) || rt.equals(RecordType.NS) || rt.equals(RecordType.PTR) ||
+                rt.equals(RecordType.MX);
+        if (data == null && !addressResult && !nameResult)
+            return;
+
+        addName(rr.getQuestion().getDomainName());
+        addQType(rr.getQuestion().getTypeCode());
+        addQClass(rr.getQuestion().getClassCode());
+        buffer.putInt((int) rr.getRemainingTTL());
+        // The data length is only known once the (possibly compressed) data has been written
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        if (data instanceof RecordData.SOA) {
+            RecordData.SOA soa = (RecordData.SOA) data;
+            addName(soa.getPrimaryNameServer());
+            addName(soa.getMailbox());
+            buffer.putInt(soa.getSerial());
+            buffer.putInt(soa.getRefresh());
+            buffer.putInt(soa.getRetry());
+            buffer.putInt(soa.getExpire());
+            buffer.putInt(soa.getMinimum());
+        } else if (data instanceof RecordData.SRV) {
+            RecordData.SRV srv = (RecordData.SRV) data;
+            buffer.putShort((short) srv.getPriority());
+            buffer.putShort((short) srv.getWeight());
+            buffer.putShort((short) srv.getPort());
+            addUncompressedName(srv.getTarget()); // SRV targets must not be compressed (RFC 2782)
+        } else if (data instanceof RecordData.TXT) {
+            buffer.put(((RecordData.TXT) data).data());
+        } else if (data instanceof RecordData.Raw) {
+            buffer.put(((RecordData.Raw) data).data());
+        } else if (addressResult) {
+            rr.putAddress(buffer);
+        } else {
+            if (rt.equals(RecordType.MX))
+                buffer.putShort((short) 0); //dummy short
+            DomainName name = rr.getNameResult();
+            if (name != null)
+                addName(name);
+            else
+                addName(rr.getTextResult());
         }
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+        if (section.equals("answer"))
+            setANCount(getANCount() + 1);
+        else if (section.equals("nameserver") || section.equals("authority"))
+            setNSCount(getNSCount() + 1);
+        else
+            setARCount(getARCount() + 1);
+    }
+
+    /**
+     * Add an OPT pseudo-record (EDNS version 0) to the additional section at the current position,
+     * advertising that responses of up to payloadSize bytes can be received over UDP.
+     *
+     * @param payloadSize The UDP payload size to advertise, in bytes
+     */
+    public void addOPT(int payloadSize) {
+        buffer.put((byte) 0); // root name
+        addQType(RecordType.OPT.getCode());
+        buffer.putShort((short) payloadSize); // class: payload size
+        buffer.putInt(0); // TTL: extended rcode, version 0 and no flags
+        buffer.putShort((short) 0); // no options
         setARCount(getARCount() + 1);
     }
 
     /**
      * Add an encoded type to the message at the current position.
-     * @param recordType The type to be added
+     * @param code The type code to be added
      */
-    private void addQType(RecordType recordType) {
-        int code = recordType.getCode();
+    private void addQType(int code) {
         buffer.putShort((short) code);
     }
 
     /**
      * Add an encoded class to the message at the current position.
-     * @param recordClass The class to be added
+     * @param code The class code to be added
      */
-    private void addQClass(RecordClass recordClass) {
-        int code = recordClass.getCode();
+    private void addQClass(int code) {
         buffer.putShort((short) code);
     }
 
@@ -488,6 +859,44 @@ public class DNSMessage {
         return arr;
     }
 
+    /**
+     * Returns a read-only view of the data comprising this message, i.e., everything up to the current position in the
+     * buffer. No data is copied: the view shares the buffer of this message, so it can be sent as many times as needed
+     * (after a rewind()) but is only valid until the message is changed or released.
+     *
+     * @return A read-only buffer whose remaining bytes are this message's data
+     */
+    public ByteBuffer getEncoded() {
+        ByteBuffer encoded = buffer.asReadOnlyBuffer();
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Writes all the data comprising this message to the given channel, without copying it.
+     *
+     * @param channel The channel the message is written to
+     * @return The number of bytes written
+     * @throws IOException If the channel cannot be written to
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        return channel.write(getEncoded());
+    }
+
+    /**
+     * Returns the current position in the buffer, i.e., where the next field will be read or written.
+     */
+    int getPosition() {
+        return buffer.position();
+    }
+
+    /**
+     * Moves the current position in the buffer, e.g., to decode a field again.
+     */
+    void setPosition(int position) {
+        buffer.position(position);
+    }
+
     /**
      * Returns a string representation of a DNS error code.
      *
@@ -507,4 +916,13 @@ public class DNSMessage {
             return errors[error];
         return "Invalid error message";
     }
+
+    /**
+     * Thrown when a received message cannot be decoded, e.g., because of a compression pointer loop.
+     */
+    public static class MalformedMessageException extends RuntimeException {
+        public MalformedMessageException(String message) {
+            super(message);
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of DNSMessage objects, so that sending a query and receiving its response does not allocate a new buffer (and
+ * compression map) every time. Messages are handed out already reset, and must be returned with release() once they
+ * are no longer used; records decoded from a message do not refer to its buffer, so they remain valid after release.
+ * <p>
+ * The pool is safe to use from multiple threads. It keeps at most MAX_POOLED idle messages; messages released beyond
+ * that are left to the garbage collector.
+ */
+class DNSMessagePool {
+
+    private static final int MAX_POOLED = 64;
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<DNSMessage> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates a pool of messages with the classic DNS size limit of MAX_DNS_MESSAGE_LENGTH bytes.
+     */
+    DNSMessagePool() {
+        this(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Creates a pool of messages that can each hold up to capacity bytes.
+     *
+     * @param capacity The size of the buffer of each message, in bytes.
+     */
+    DNSMessagePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the size of the buffer of the messages in this pool, in bytes.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns an empty message with the given id, either reused from the pool or newly allocated.
+     *
+     * @param id The id of the message.
+     * @return A message in the same state as one created with DNSMessage(id).
+     */
+    DNSMessage acquire(short id) {
+        DNSMessage message = idle.poll();
+        if (message == null)
+            return new DNSMessage(id, capacity);
+        idleCount.decrementAndGet();
+        message.reset(id);
+        return message;
+    }
+
+    /**
+     * Returns a message to the pool. The message must not be used by the caller after this call. Messages of a
+     * different capacity than the pool's are not kept.
+     *
+     * @param message A message obtained from acquire() to be reused, or null (in which case nothing happens).
+     */
+    void release(DNSMessage message) {
+        if (message == null || message.getCapacity() != capacity) return;
+        if (idleCount.incrementAndGet() > MAX_POOLED) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(message);
+    }
+}
@@ -1,26 +1,60 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * Each node represents a fully-qualified domain name (represented by an interned DomainName) and a record
+ * type. Two nodes with the same host name (ignoring case) and type are considered equal. The numeric type and class
+ * are kept, so types and classes that are not supported by the application (OTHER) are still told apart.
  */
 public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
-    private final String hostName;
+    private final DomainName name;
     private final RecordType type;
     private final RecordClass recordClass;
+    private final int typeCode;
+    private final int classCode;
+    private final int hash;
+    /** The question for the CNAME records of the same name, created when first needed. */
+    private transient DNSQuestion cnameQuestion;
 
+    /**
+     * @throws IllegalArgumentException If the host name is not a valid domain name.
+     */
     public DNSQuestion(String hostName, RecordType type, RecordClass recordClass) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type, recordClass);
+    }
+
+    public DNSQuestion(DomainName name, RecordType type, RecordClass recordClass) {
+        this(name, type, recordClass, type.getCode(), recordClass.getCode());
+    }
+
+    /**
+     * Creates a question for the type and class codes received from a nameserver, which may not be supported by the
+     * application.
+     */
+    DNSQuestion(DomainName name, int typeCode, int classCode) {
+        this(name, RecordType.getByCode(typeCode), RecordClass.getByCode(classCode), typeCode, classCode);
+    }
+
+    private DNSQuestion(DomainName name, RecordType type, RecordClass recordClass, int typeCode, int classCode) {
+        this.name = name;
         this.type = type;
         this.recordClass = recordClass;
+        this.typeCode = typeCode;
+        this.classCode = classCode;
+        this.hash = (name.hashCode() * 31 + typeCode) * 31 + classCode;
     }
 
+    /**
+     * Returns the host name, lower-cased and without a trailing dot.
+     */
     public String getHostName() {
-        return hostName;
+        return name.toString();
+    }
+
+    public DomainName getDomainName() {
+        return name;
     }
 
     public RecordType getRecordType() {
@@ -31,20 +65,49 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
         return recordClass;
     }
 
+    /**
+     * Returns the numeric record type, as sent on the wire, even if the type is OTHER.
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * Returns the numeric record class, as sent on the wire, even if the class is OTHER.
+     */
+    public int getClassCode() {
+        return classCode;
+    }
+
+    /**
+     * Returns the question for the CNAME records of the same name and class. The question is kept, so looking up the
+     * aliases of a name again does not create a new one.
+     */
+    DNSQuestion getCnameQuestion() {
+        DNSQuestion cname = cnameQuestion;
+        if (cname == null)
+            cnameQuestion = cname = type == RecordType.CNAME ? this
+                    : new DNSQuestion(name, RecordType.CNAME.getCode(), classCode);
+        return cname;
+    }
+
     @Override
     public String toString() {
-        return (hostName.isEmpty() ? "<root>" : hostName) + " (" + type + ")";
+        return (name.isRoot() ? "<root>" : name.toString()) + " (" +
+                (type == RecordType.OTHER ? "TYPE" + typeCode : type) + ")";
     }
 
     @Override
     public int compareTo(DNSQuestion o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        if (!hostName.equals(o.hostName))
-            return hostName.compareTo(o.hostName);
+        if (name != o.name)
+            return name.compareTo(o.name);
         if (!recordClass.equals(o.recordClass))
             return recordClass.compareTo(o.recordClass);
-        return type.compareTo(o.type);
+        if (classCode != o.classCode)
+            return Integer.compare(classCode, o.classCode);
+        if (!type.equals(o.type))
+            return type.compareTo(o.type);
+        return Integer.compare(typeCode, o.typeCode);
     }
 
     @Override
@@ -52,11 +115,11 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return hostName.equals(that.hostName) && type == that.type && recordClass == that.recordClass;
+        return hash == that.hash && name == that.name && typeCode == that.typeCode && classCode == that.classCode;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(hostName, type, recordClass);
+        return hash;
     }
 }
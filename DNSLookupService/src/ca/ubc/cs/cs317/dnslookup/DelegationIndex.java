@@ -0,0 +1,85 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the zone cuts (names with cached NS records) known to the cache, as a trie of labels in reverse order:
+ * the root node has a child for "ca", which has a child for "ubc", and so on. Finding the zones that enclose a name
+ * follows the labels of the name from the right, so it takes one step per label, whatever the number of zones.
+ * <p>
+ * The index is only a hint: the cache still has to check that the NS records of a zone, and the addresses of its
+ * nameservers, are cached and valid. It is safe to use from multiple threads. A zone added while an empty branch is
+ * being pruned may be lost, which only means that lookups under it start higher up until its NS records are added
+ * again.
+ */
+class DelegationIndex {
+
+    private final Node root = new Node();
+
+    /**
+     * Records that a zone has NS records in the cache.
+     */
+    void add(DomainName zone) {
+        Node node = root;
+        for (int label = zone.labelCount() - 1; label >= 0; label--)
+            node = node.children.computeIfAbsent(label(zone, label), key -> new Node());
+        node.zone = zone;
+    }
+
+    /**
+     * Records that a zone no longer has NS records in the cache, and prunes the branches left empty.
+     */
+    void remove(DomainName zone) {
+        Node[] path = new Node[zone.labelCount() + 1];
+        path[0] = root;
+        for (int label = zone.labelCount() - 1, depth = 1; label >= 0; label--, depth++) {
+            path[depth] = path[depth - 1].children.get(label(zone, label));
+            if (path[depth] == null) return;
+        }
+        path[path.length - 1].zone = null;
+        for (int depth = path.length - 1; depth > 0; depth--) {
+            Node node = path[depth];
+            if (node.zone != null || !node.children.isEmpty()) break;
+            path[depth - 1].children.remove(label(zone, zone.labelCount() - depth), node);
+        }
+    }
+
+    /**
+     * Forgets every zone.
+     */
+    void clear() {
+        root.children.clear();
+    }
+
+    /**
+     * Returns the zones in the index that enclose a name, including the name itself if it is a zone, from the deepest
+     * to the closest to the root. The root zone is not included.
+     */
+    List<DomainName> enclosingZones(DomainName name) {
+        List<DomainName> zones = new ArrayList<>();
+        Node node = root;
+        for (int label = name.labelCount() - 1; label >= 0; label--) {
+            node = node.children.get(label(name, label));
+            if (node == null) break;
+            DomainName zone = node.zone;
+            if (zone != null)
+                zones.add(0, zone);
+        }
+        return zones;
+    }
+
+    private static String label(DomainName name, int label) {
+        int start = name.labelStart(label);
+        return new String(name.wire(), start + 1, name.wire()[start], StandardCharsets.ISO_8859_1);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        /** The zone this node stands for, if it has NS records in the cache; null otherwise. */
+        private volatile DomainName zone;
+    }
+}
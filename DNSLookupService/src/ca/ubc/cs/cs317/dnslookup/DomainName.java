@@ -0,0 +1,213 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A fully-qualified domain name, normalized once: ASCII letters are lower-cased and a trailing dot is removed. Domain
+ * names are interned, so there is a single DomainName object for each name in use, and two names are equal if and only
+ * if they are the same object. Each name also keeps its hash code and its wire format, so it can be used as a map key
+ * and written to a message without being processed again.
+ * <p>
+ * Interned names are only weakly referenced by the intern table, so names that are no longer used by any question,
+ * record or message are garbage collected.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final ConcurrentHashMap<String, NameReference> interned = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<DomainName> collected = new ReferenceQueue<>();
+
+    /** The root name, i.e., the empty name. */
+    public static final DomainName ROOT = of("");
+
+    private final String name;
+    private final int hash;
+    /** The name in wire format, including the terminating zero-length label. */
+    private final byte[] wire;
+    /** Position in wire of the length byte of each label; the last entry is the position of the terminating zero. */
+    private final int[] labels;
+    /** Hash of the characters of each label. */
+    private final int[] labelHashes;
+
+    private DomainName(String name, byte[] wire) {
+        this.name = name;
+        this.hash = name.hashCode();
+        this.wire = wire;
+        int count = 0;
+        for (int pos = 0; wire[pos] != 0; pos += wire[pos] + 1)
+            count++;
+        this.labels = new int[count + 1];
+        this.labelHashes = new int[count];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            labels[i] = pos;
+            int labelHash = 0;
+            for (int j = 1; j <= wire[pos]; j++)
+                labelHash = 31 * labelHash + (wire[pos + j] & 0xff);
+            labelHashes[i] = labelHash;
+            pos += wire[pos] + 1;
+        }
+        labels[count] = pos;
+    }
+
+    /**
+     * Returns the interned domain name for a host name, which may be in any case and may end with a dot.
+     *
+     * @param hostName The host name, e.g., "www.cs.ubc.ca".
+     * @return The interned domain name.
+     * @throws IllegalArgumentException If the name has an empty label, a label longer than 63 characters, or is longer
+     *                                  than DNSMessage.MAX_NAME_LENGTH in wire format.
+     */
+    public static DomainName of(String hostName) {
+        int length = hostName.length();
+        if (length > 0 && hostName.charAt(length - 1) == '.') length--;
+        // In wire format, a name other than the root takes one more byte than its dotted form for the first label
+        // length, and one more for the terminating zero
+        if (length > 0 && length + 2 > DNSMessage.MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name too long: " + hostName);
+        // Every character ends up one position later in wire format, and every dot becomes the length of the label
+        // that follows it
+        char[] chars = new char[length];
+        byte[] wire = new byte[length == 0 ? 1 : length + 2];
+        int labelStart = 0; // position of the length byte of the current label
+        for (int i = 0; length > 0 && i <= length; i++) {
+            char c = i < length ? toLowerCase(hostName.charAt(i)) : '.';
+            if (c == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength == 0 || labelLength > 63)
+                    throw new IllegalArgumentException("Invalid label in name: " + hostName);
+                wire[labelStart] = (byte) labelLength;
+                labelStart = i + 1;
+            } else {
+                wire[i + 1] = (byte) c;
+            }
+            if (i < length) chars[i] = c;
+        }
+        return intern(new String(chars), wire);
+    }
+
+    /**
+     * Returns the interned domain name for a name that is already normalized, given with its wire format. Used by the
+     * decoder, which builds both while reading the name.
+     *
+     * @param name The name, lower-cased and without a trailing dot.
+     * @param wire The wire format of the name, including the terminating zero. Must not be modified afterwards.
+     * @return The interned domain name.
+     */
+    static DomainName intern(String name, byte[] wire) {
+        NameReference reference;
+        while ((reference = (NameReference) collected.poll()) != null)
+            interned.remove(reference.name, reference);
+        reference = interned.get(name);
+        DomainName existing = reference == null ? null : reference.get();
+        if (existing != null)
+            return existing;
+        DomainName created = new DomainName(name, wire);
+        while (true) {
+            NameReference createdReference = new NameReference(created);
+            reference = interned.putIfAbsent(name, createdReference);
+            if (reference == null)
+                return created;
+            existing = reference.get();
+            if (existing != null)
+                return existing;
+            // The previous name was collected, but not removed from the table yet
+            if (interned.replace(name, reference, createdReference))
+                return created;
+        }
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Returns the wire format of this name, including the terminating zero. The array must not be modified.
+     */
+    byte[] wire() {
+        return wire;
+    }
+
+    /**
+     * Returns the number of labels in this name (0 for the root).
+     */
+    int labelCount() {
+        return labelHashes.length;
+    }
+
+    /**
+     * Returns the position in wire() of the length byte of a label. For labelCount() it returns the position of the
+     * terminating zero, i.e., the length of the name in wire format without it.
+     */
+    int labelStart(int label) {
+        return labels[label];
+    }
+
+    /**
+     * Returns the hash of the characters of a label.
+     */
+    int labelHash(int label) {
+        return labelHashes[label];
+    }
+
+    /**
+     * Returns true if this name is the given zone or a name under it, e.g., "www.cs.ubc.ca" is within "ubc.ca".
+     */
+    public boolean isWithin(DomainName zone) {
+        int skipped = labelCount() - zone.labelCount();
+        if (skipped < 0) return false;
+        if (skipped == 0) return this == zone;
+        // Names are lower-cased, so the wire format of the zone is a suffix of this one's if the name is under it
+        int start = labels[skipped];
+        if (wire.length - start != zone.wire.length) return false;
+        for (int i = 0; i < zone.wire.length; i++)
+            if (wire[start + i] != zone.wire[i]) return false;
+        return true;
+    }
+
+    /**
+     * Returns true if this is the root name.
+     */
+    public boolean isRoot() {
+        return labelHashes.length == 0;
+    }
+
+    @Override
+    public int compareTo(DomainName o) {
+        return this == o ? 0 : name.compareTo(o.name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // Names are interned, so any other object is a different name
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Returns the name in text form, lower-cased and without a trailing dot (the root name is the empty string).
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private Object readResolve() {
+        return intern(name, wire);
+    }
+
+    private static final class NameReference extends WeakReference<DomainName> {
+        private final String name;
+
+        NameReference(DomainName domainName) {
+            super(domainName, collected);
+            this.name = domainName.name;
+        }
+    }
+}
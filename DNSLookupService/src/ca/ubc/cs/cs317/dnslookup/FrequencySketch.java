@@ -0,0 +1,86 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * An approximate count of how often keys were used recently: a count-min sketch with four 4-bit counters per key,
+ * packed sixteen to a long. When the total number of increments reaches ten times the table size, every counter is
+ * halved, so the counts follow the recent popularity of keys rather than their whole history.
+ * <p>
+ * Increments are not atomic. Concurrent increments may occasionally be lost, which only makes the estimates slightly
+ * lower; it never corrupts the table.
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97CB3127, 0xB22A5E7D, 0x9E3779B9, 0xC2B2AE35};
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch sized for about the given number of distinct keys.
+     */
+    FrequencySketch(long expectedKeys) {
+        int size = (int) Math.min(1 << 22, Math.max(16, Long.highestOneBit(Math.max(1, expectedKeys) - 1) << 1));
+        this.table = new long[size];
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Returns the estimated number of recent uses of a key, between 0 and 15.
+     */
+    int frequency(int keyHash) {
+        int frequency = 15;
+        int hash = spread(keyHash);
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = counterShift(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a use of a key.
+     */
+    void increment(int keyHash) {
+        int hash = spread(keyHash);
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = counterShift(hash, i);
+            long value = table[index];
+            if (((value >>> shift) & 0xF) < 15) {
+                table[index] = value + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int i) {
+        int h = (hash + SEEDS[i]) * SEEDS[i];
+        h ^= h >>> 17;
+        return h & (table.length - 1);
+    }
+
+    /** Each key uses a different one of the sixteen counters of a long for each of its four hashes. */
+    private static int counterShift(int hash, int i) {
+        return (((hash >>> (i * 8)) & 3) * 4 + i) * 4;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,50 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+
+/**
+ * A small, fixed-size table of previously decoded names. DNS responses repeat the same few names over and over (the
+ * question name, the zone in every NS record, the nameserver names in the additional section), so looking the decoded
+ * characters up here avoids creating a new String and going through the DomainName intern table for every occurrence.
+ * <p>
+ * The table is direct-mapped: a name that collides with another simply replaces it. Slots are read and written without
+ * locking; since DomainNames are immutable and interned, the worst a race can cause is an extra intern table lookup.
+ */
+class NameTable {
+
+    private static final int SIZE = 4096; // must be a power of two
+    private static final DomainName[] names = new DomainName[SIZE];
+
+    private NameTable() {
+    }
+
+    /**
+     * Returns the interned DomainName for the first length characters of chars, taken from the table if it is still
+     * there.
+     *
+     * @param chars      The characters of the name, already lower-cased.
+     * @param length     The number of characters in chars that are part of the name.
+     * @param hash       The String hash code of the name, i.e., the same value String.hashCode() would return.
+     * @param wire       The wire format of the name, including the terminating zero.
+     * @param wireLength The number of bytes in wire that are part of the name.
+     * @return The interned domain name.
+     */
+    static DomainName intern(char[] chars, int length, int hash, byte[] wire, int wireLength) {
+        if (length == 0) return DomainName.ROOT;
+        int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        DomainName name = names[slot];
+        if (name != null && name.hashCode() == hash && matches(name.toString(), chars, length))
+            return name;
+        name = DomainName.intern(new String(chars, 0, length), Arrays.copyOf(wire, wireLength));
+        names[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(String name, char[] chars, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * A cached negative answer (RFC 2308): the knowledge that a name does not exist (NXDOMAIN), or that it exists but has
+ * no records of the type asked for (NODATA). Negative answers are cached for the question they answer, for the
+ * smaller of the TTL of the SOA record in the authority section of the response and the MINIMUM field of that SOA,
+ * and never for more than MAX_TTL seconds.
+ */
+public class NegativeAnswer {
+
+    /** The longest time a negative answer is cached, in seconds, as suggested by RFC 2308 (section 5). */
+    public static final int MAX_TTL = 3 * 60 * 60;
+
+    /**
+     * The reason why there are no records for the question.
+     */
+    public enum Kind {
+        /** The name does not exist (response code 3). */
+        NXDOMAIN,
+        /** The name exists, but has no records of this type (response code 0 without answers). */
+        NODATA
+    }
+
+    private final DNSQuestion question;
+    private final Kind kind;
+    private final ResourceRecord soa;
+    /** Expiration time, in milliseconds since the epoch. */
+    private final long expirationTime;
+
+    /**
+     * Creates a negative answer from the SOA record found in the authority section of a response.
+     *
+     * @param question The question that was answered.
+     * @param kind     Whether the name does not exist, or only has no records of this type.
+     * @param soa      The SOA record of the zone, which bounds how long the answer may be cached.
+     * @throws IllegalArgumentException If the record is not an SOA record.
+     */
+    public NegativeAnswer(DNSQuestion question, Kind kind, ResourceRecord soa) {
+        if (!(soa.getDataResult() instanceof RecordData.SOA))
+            throw new IllegalArgumentException("Not an SOA record: " + soa);
+        long minimum = ((RecordData.SOA) soa.getDataResult()).getMinimum() & 0xFFFFFFFFL;
+        long ttl = Math.min(Math.min(minimum, MAX_TTL) * 1000, soa.getExpirationTime() - System.currentTimeMillis());
+        this.question = question;
+        this.kind = kind;
+        this.soa = soa;
+        this.expirationTime = System.currentTimeMillis() + Math.max(0, ttl);
+    }
+
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the SOA record of the zone that gave this answer.
+     */
+    public ResourceRecord getSOA() {
+        return soa;
+    }
+
+    /**
+     * Returns the time at which this answer expires, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * The remaining TTL for this answer, in seconds, rounded up.
+     */
+    public long getRemainingTTL() {
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    public boolean isExpired() {
+        return expirationTime <= System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + question + " (" + soa.getHostName() + ")";
+    }
+}
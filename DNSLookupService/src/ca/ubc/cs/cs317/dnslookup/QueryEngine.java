@@ -0,0 +1,302 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends queries to nameservers over UDP and matches their responses, with any number of queries in flight at once on
+ * a single non-blocking DatagramChannel. Queries are sent by the thread that submits them; one thread, started with the
+ * first query, waits on a selector for responses and hands each one to the query with the same transaction ID, sent to
+ * the address it came from, for the same question (RFC 5452), so responses may arrive in any order. Datagrams that
+ * match no query in flight (late, duplicated or spoofed responses), or that are too malformed to match one, are
+ * dropped.
+ * <p>
+ * The same thread retransmits the queries that are not answered in time, using a single TimingWheel with ticks of
+ * TICK_MILLIS for all of them, so a timer costs the same whatever the number of queries in flight. A query that
+ * completes cancels its timer, so the wheel does not keep the query, its data and its response until the timer would
+ * have expired; the small cancelled entry is dropped when its tick is processed.
+ * <p>
+ * Futures are completed on the engine's thread, so stages that depend on them without an executor must not block.
+ */
+class QueryEngine implements Closeable {
+
+    /** The resolution of retransmission timers, in milliseconds. */
+    static final long TICK_MILLIS = 10;
+    /** The receive buffer requested for the channel, so bursts of responses are not dropped before they are read. */
+    static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private final int port;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Map<Key, Query> inFlight = new ConcurrentHashMap<>();
+    private final TimingWheel<Query> timers = new TimingWheel<>(System.currentTimeMillis(), TICK_MILLIS);
+    private final DNSMessagePool responses = new DNSMessagePool(DNSMessage.MAX_EDNS_PAYLOAD_SIZE);
+    private final Random random = new SecureRandom();
+    private volatile Thread thread; // started with the first query
+    /** Set while the thread waits with no query in flight, so that a new query wakes it up. */
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    /**
+     * Creates an engine for nameservers listening on the given port, and opens its channel.
+     *
+     * @param port The UDP port of the nameservers, usually DEFAULT_DNS_PORT.
+     * @throws IOException If the channel or the selector cannot be opened.
+     */
+    QueryEngine(int port) throws IOException {
+        this.port = port;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a query to a nameserver, and sends it again every timeout milliseconds until a response arrives, at most
+     * attempts times in all. If another query with the same transaction ID and question is in flight to the same
+     * server, the query is given a new random transaction ID first.
+     * <p>
+     * The query message must be left as it is until the future completes, as retransmissions are sent from its buffer.
+     * Cancelling the future stops the retransmissions, and a response that arrives afterwards is dropped.
+     *
+     * @param question   The question of the query, which the response must repeat.
+     * @param query      The query message, ready to be sent.
+     * @param server     Address of the nameserver.
+     * @param timeout    Time to wait for a response after each attempt, in milliseconds.
+     * @param attempts   Maximum number of times the query is sent.
+     * @param beforeSend Called just before the query is sent, for the first attempt and each retransmission.
+     * @return A future completed with the response, to be given back with release() once decoded; or completed
+     * exceptionally with a SocketTimeoutException if no response arrives after the last attempt, or another
+     * IOException if the query cannot be sent or the engine is closed.
+     */
+    CompletableFuture<DNSMessage> query(DNSQuestion question, DNSMessage query, InetAddress server, int timeout,
+                                        int attempts, Runnable beforeSend) {
+        InetSocketAddress destination = new InetSocketAddress(server, port);
+        Query pending;
+        while (true) {
+            pending = new Query(new Key(query.getID(), destination, question), query.getEncoded(), timeout,
+                    attempts, beforeSend);
+            if (inFlight.putIfAbsent(pending.key, pending) == null) break;
+            query.setID(random.nextInt());
+        }
+        Query submitted = pending;
+        submitted.future.whenComplete((response, failure) -> {
+            inFlight.remove(submitted.key, submitted);
+            TimingWheel.Entry<Query> timer = submitted.timer;
+            if (timer != null)
+                timer.cancel();
+        });
+        if (closed) {
+            submitted.future.completeExceptionally(new AsynchronousCloseException());
+            return submitted.future;
+        }
+        if (thread == null)
+            start();
+        if (sleeping)
+            selector.wakeup();
+        send(submitted);
+        return submitted.future;
+    }
+
+    /**
+     * Gives back a response obtained from query(), once it has been decoded, so its buffer can receive another one.
+     *
+     * @param response The response, or null (in which case nothing happens).
+     */
+    void release(DNSMessage response) {
+        responses.release(response);
+    }
+
+    /**
+     * Returns the number of queries waiting for a response.
+     */
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Closes the channel. Queries still in flight complete exceptionally with an AsynchronousCloseException.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (thread != null) {
+            selector.wakeup();
+            return; // the thread closes the channel and fails the queries left on its way out
+        }
+        shutdown();
+    }
+
+    private synchronized void start() {
+        if (thread != null || closed) return;
+        thread = new Thread(this::run, "dns-query-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends the next attempt of a query, and schedules the one after it (or the timeout, after the last attempt).
+     */
+    private void send(Query query) {
+        query.attemptsLeft--;
+        TimingWheel.Entry<Query> timer = timers.schedule(query, System.currentTimeMillis() + query.timeout);
+        query.timer = timer;
+        if (query.future.isDone())
+            timer.cancel(); // completed before its timer was set
+        query.beforeSend.run();
+        try {
+            // Nothing is sent if the socket buffer is full; the datagram counts as lost, and is sent again on time out
+            channel.send(query.data.duplicate(), query.key.server);
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Called by the wheel when the timer of a query expires: sends the query again, or gives up on it if that was the
+     * last attempt.
+     */
+    private void expired(Query query, long deadline) {
+        if (query.future.isDone()) return;
+        if (query.attemptsLeft > 0)
+            send(query);
+        else
+            query.future.completeExceptionally(new SocketTimeoutException("No response from "
+                    + query.key.server.getAddress().getHostAddress() + " after " + query.attempts + " attempts"));
+    }
+
+    private void run() {
+        DNSMessage response = responses.acquire((short) 0);
+        try {
+            while (!closed) {
+                if (inFlight.isEmpty()) {
+                    sleeping = true;
+                    if (inFlight.isEmpty() && !closed)
+                        selector.select();
+                    sleeping = false;
+                } else {
+                    selector.select(TICK_MILLIS);
+                }
+                selector.selectedKeys().clear();
+                InetSocketAddress source;
+                while ((source = (InetSocketAddress) channel.receive(response.receiveBuffer())) != null) {
+                    boolean handedOver;
+                    try {
+                        // Datagrams too short to hold a header (runts) are dropped before decoding anything
+                        handedOver = response.received() && dispatch(response, source);
+                    } catch (RuntimeException e) {
+                        handedOver = false; // a bad datagram is dropped, it must not stop the engine
+                    }
+                    if (handedOver)
+                        response = responses.acquire((short) 0);
+                }
+                timers.advance(System.currentTimeMillis(), this::expired);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The channel can no longer be used; the queries in flight fail below
+        } finally {
+            closed = true;
+            shutdown();
+        }
+    }
+
+    /**
+     * Hands a response to the query it answers, if it is in flight.
+     *
+     * @return true if the response was handed over, and its message can no longer be used to receive.
+     */
+    private boolean dispatch(DNSMessage response, InetSocketAddress source) {
+        Query query;
+        try {
+            if (!response.getQR() || response.getQDCount() == 0)
+                return false;
+            query = inFlight.get(new Key(response.getID(), source, response.getQuestion(0)));
+        } catch (RuntimeException e) {
+            return false; // too malformed to tell which query it answers
+        }
+        return query != null && query.future.complete(response);
+    }
+
+    private void shutdown() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with the channel anyway
+        }
+        for (Query query : inFlight.values())
+            query.future.completeExceptionally(new AsynchronousCloseException());
+    }
+
+    /**
+     * What a response must match to answer a query: transaction ID, server and question.
+     */
+    private static final class Key {
+        private final int id;
+        private final InetSocketAddress server;
+        private final DNSQuestion question;
+
+        Key(int id, InetSocketAddress server, DNSQuestion question) {
+            this.id = id;
+            this.server = server;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return id == that.id && server.equals(that.server) && question.equals(that.question);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, server, question);
+        }
+    }
+
+    private static final class Query {
+        private final Key key;
+        private final ByteBuffer data;
+        private final int timeout;
+        private final int attempts;
+        private final Runnable beforeSend;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        /** Only changed by the thread that submits the query, before it is scheduled, and then by the engine. */
+        private volatile int attemptsLeft;
+        /** The timer of the last attempt, cancelled when the query completes. */
+        private volatile TimingWheel.Entry<Query> timer;
+
+        Query(Key key, ByteBuffer data, int timeout, int attempts, Runnable beforeSend) {
+            this.key = key;
+            this.data = data;
+            this.timeout = timeout;
+            this.attempts = attempts;
+            this.attemptsLeft = attempts;
+            this.beforeSend = beforeSend;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.util.Arrays;
-
 /** Record classes supported by the application.
  */
 public enum RecordClass {
-    IN (1), OTHER(0);
+    IN (1), CH (3), HS (4), OTHER(0);
+
+    private static final RecordClass[] byCode;
+
+    static {
+        int max = 0;
+        for (RecordClass recordClass : values())
+            max = Math.max(max, recordClass.code);
+        byCode = new RecordClass[max + 1];
+        for (RecordClass recordClass : values())
+            byCode[recordClass.code] = recordClass;
+    }
 
     private final int code;
 
@@ -24,6 +33,7 @@ public enum RecordClass {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordClass getByCode(int code) {
-        return Arrays.stream(values()).filter(v -> v.code == code).findFirst().orElse(OTHER);
+        if (code < 0 || code >= byCode.length || byCode[code] == null) return OTHER;
+        return byCode[code];
     }
 }
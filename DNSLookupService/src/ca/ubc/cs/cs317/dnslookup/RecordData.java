@@ -0,0 +1,248 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The data (RDATA) of a resource record whose result is not simply a host name or an address. Each supported type
+ * keeps its fields in compact form (numbers as primitives, text as bytes); the text representation used for display
+ * is only built when toString() is called.
+ */
+public abstract class RecordData implements Serializable {
+
+    /**
+     * Start of authority: the primary nameserver and responsible mailbox of a zone, and its timers.
+     */
+    public static final class SOA extends RecordData {
+        private final String primaryNameServer;
+        private final String mailbox;
+        private final int serial;
+        private final int refresh;
+        private final int retry;
+        private final int expire;
+        private final int minimum;
+
+        public SOA(String primaryNameServer, String mailbox, int serial, int refresh, int retry, int expire,
+                   int minimum) {
+            this.primaryNameServer = primaryNameServer;
+            this.mailbox = mailbox;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        public String getPrimaryNameServer() {
+            return primaryNameServer;
+        }
+
+        public String getMailbox() {
+            return mailbox;
+        }
+
+        public int getSerial() {
+            return serial;
+        }
+
+        public int getRefresh() {
+            return refresh;
+        }
+
+        public int getRetry() {
+            return retry;
+        }
+
+        public int getExpire() {
+            return expire;
+        }
+
+        /**
+         * The minimum field, which is also the TTL to be used for negative responses (RFC 2308).
+         */
+        public int getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SOA that = (SOA) o;
+            return serial == that.serial && refresh == that.refresh && retry == that.retry &&
+                    expire == that.expire && minimum == that.minimum &&
+                    primaryNameServer.equals(that.primaryNameServer) && mailbox.equals(that.mailbox);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(primaryNameServer, mailbox, serial);
+        }
+
+        @Override
+        public String toString() {
+            return primaryNameServer + " " + mailbox + " " + Integer.toUnsignedString(serial) + " " + refresh + " " +
+                    retry + " " + expire + " " + minimum;
+        }
+    }
+
+    /**
+     * Service location: the host and port of a service, with priority and weight for choosing between hosts.
+     */
+    public static final class SRV extends RecordData {
+        private final short priority;
+        private final short weight;
+        private final short port;
+        private final String target;
+
+        public SRV(int priority, int weight, int port, String target) {
+            this.priority = (short) priority;
+            this.weight = (short) weight;
+            this.port = (short) port;
+            this.target = target;
+        }
+
+        public int getPriority() {
+            return priority & 0xFFFF;
+        }
+
+        public int getWeight() {
+            return weight & 0xFFFF;
+        }
+
+        public int getPort() {
+            return port & 0xFFFF;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SRV that = (SRV) o;
+            return priority == that.priority && weight == that.weight && port == that.port &&
+                    target.equals(that.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(priority, weight, port, target);
+        }
+
+        @Override
+        public String toString() {
+            return getPriority() + " " + getWeight() + " " + getPort() + " " + target;
+        }
+    }
+
+    /**
+     * Text strings, kept exactly as they appear in the message: each string is preceded by its length.
+     */
+    public static final class TXT extends RecordData {
+        private final byte[] data;
+
+        public TXT(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Returns the individual strings of this record.
+         */
+        public String[] getStrings() {
+            int count = 0;
+            for (int pos = 0; pos < data.length; pos += (data[pos] & 0xFF) + 1)
+                count++;
+            String[] strings = new String[count];
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int length = Math.min(data[pos] & 0xFF, data.length - pos - 1);
+                strings[i] = new String(data, pos + 1, length, StandardCharsets.UTF_8);
+                pos += length + 1;
+            }
+            return strings;
+        }
+
+        /**
+         * Returns the record data in wire format.
+         */
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        byte[] data() {
+            return data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(data, ((TXT) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (String string : getStrings()) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append('"').append(string).append('"');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Data of a record type that is not supported by the application, kept as the raw bytes received.
+     */
+    public static final class Raw extends RecordData {
+        private final byte[] data;
+
+        public Raw(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Returns the record data as received.
+         */
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        byte[] data() {
+            return data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(data, ((Raw) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+
+        /**
+         * Returns a hex string with the value of every byte in the data.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(data.length * 2);
+            for (byte b : data)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.util.Arrays;
-
 /**
  * Record types supported by the application. Includes a few common record types that are not
  * fully supported by this application, but that are sometimes returned by nameservers for regular DNS queries.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), TXT(16), AAAA(28), SRV(33), OPT(41), OTHER(0);
+
+    private static final RecordType[] byCode;
+
+    static {
+        int max = 0;
+        for (RecordType type : values())
+            max = Math.max(max, type.code);
+        byCode = new RecordType[max + 1];
+        for (RecordType type : values())
+            byCode[type.code] = type;
+    }
 
     private final int code;
 
@@ -27,6 +36,7 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        return Arrays.stream(values()).filter(v -> v.code == code).findFirst().orElse(OTHER);
+        if (code < 0 || code >= byCode.length || byCode[code] == null) return OTHER;
+        return byCode[code];
     }
 }
@@ -2,23 +2,43 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
-import java.util.stream.IntStream;
 
 /**
  * A resource record corresponds to each individual result returned by a DNS response. It links a DNS question (host
- * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
- * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
- * created.
+ * name, type and class) to either an IP address (e.g., for A or AAAA records), a textual response (e.g., for CNAME or
+ * NS records) or typed record data (e.g., for SOA or SRV records). An expiration time is also specified, and computed
+ * based on the TTL provided when the record is created.
+ *
+ * Caches may hold a very large number of records, so the representation is kept compact: the expiration time is a
+ * primitive, addresses of A and AAAA records are stored as an int or two longs, and names are interned DomainNames.
+ * The InetAddress and the string form of an address are only built when requested.
  */
 public class ResourceRecord implements Serializable {
 
     private final DNSQuestion question;
-    private Date expirationTime;
-    private final String textResult;
-    private InetAddress inetResult;
+    /** Expiration time, in milliseconds since the epoch. */
+    private long expirationTime;
+    /** The address of an A record, when packed. */
+    private final int ipv4;
+    /** The address of an AAAA record, when packed: first and last 8 bytes, in network order. */
+    private final long ipv6High, ipv6Low;
+    /**
+     * The result of the record: a DomainName, a String (text), a RecordData, an InetAddress that could not be packed
+     * (e.g., an IPv6 address in an A record), or null for an address packed in the fields above.
+     */
+    private final Object result;
+
+    private ResourceRecord(DNSQuestion question, int ttl, Object result, int ipv4, long ipv6High, long ipv6Low) {
+        this.question = question;
+        this.expirationTime = System.currentTimeMillis() + ((long) ttl * 1000);
+        this.result = result;
+        this.ipv4 = ipv4;
+        this.ipv6High = ipv6High;
+        this.ipv6Low = ipv6Low;
+    }
 
     /**
      * Creates a new resource record based on a string result, without an InetAddress.
@@ -29,23 +49,98 @@ public class ResourceRecord implements Serializable {
      *                 for CNAME, NS and MX it represents the FQDN of the host associated to this record.
      */
     public ResourceRecord(DNSQuestion question, int ttl, String result) {
-        this.question = question;
-        this.expirationTime = new Date(System.currentTimeMillis() + ((long) ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(question, ttl, nameOrText(question, result), 0, 0, 0);
     }
 
     /**
-     * Creates a new resource record based on an InetAddress result (typically an A or AAAA record). The string
-     * representation is also saved based on the getHostAddress method of InetAddress.
+     * Creates a new resource record whose result is a host name (e.g., for CNAME, NS, PTR or MX records).
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param result   The name associated to the record's result.
+     */
+    public ResourceRecord(DNSQuestion question, int ttl, DomainName result) {
+        this(question, ttl, result, 0, 0, 0);
+    }
+
+    /**
+     * Creates a new resource record based on typed record data (e.g., SOA, SRV, TXT, or the raw data of an unsupported
+     * type). The string representation is only built if it is requested.
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param result   The data associated to the record's result.
+     */
+    public ResourceRecord(DNSQuestion question, int ttl, RecordData result) {
+        this(question, ttl, result, 0, 0, 0);
+    }
+
+    /**
+     * Creates a new resource record based on an InetAddress result (typically an A or AAAA record). The address is
+     * packed into primitive fields when it matches the record type.
      *
      * @param question Question object containing the host name (FQDN), type and class associated to this record.
      * @param ttl      Number of seconds to keep this record in cache.
      * @param result   The InetAddress object associated to the record's result.
      */
     public ResourceRecord(DNSQuestion question, int ttl, InetAddress result) {
-        this(question, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(question, ttl, packable(question, result) ? null : result,
+                question.getRecordType() == RecordType.A ? ipv4(result.getAddress()) : 0,
+                question.getRecordType() == RecordType.AAAA ? long8(result.getAddress(), 0) : 0,
+                question.getRecordType() == RecordType.AAAA ? long8(result.getAddress(), 8) : 0);
+    }
+
+    /**
+     * Creates a new A record whose address is given as an int, in network order.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, int ipv4) {
+        this(question, ttl, null, ipv4, 0, 0);
+    }
+
+    /**
+     * Creates a new AAAA record whose address is given as its first and last 8 bytes, in network order.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, long ipv6High, long ipv6Low) {
+        this(question, ttl, null, 0, ipv6High, ipv6Low);
+    }
+
+    /**
+     * Returns the result as a DomainName for the record types whose result is a host name, if it is a valid name.
+     */
+    private static Object nameOrText(DNSQuestion question, String result) {
+        switch (question.getRecordType()) {
+            case CNAME:
+            case NS:
+            case PTR:
+            case MX:
+                try {
+                    return DomainName.of(result);
+                } catch (IllegalArgumentException e) {
+                    return result;
+                }
+            default:
+                return result;
+        }
+    }
+
+    private static boolean packable(DNSQuestion question, InetAddress address) {
+        int length = address.getAddress().length;
+        return (question.getRecordType() == RecordType.A && length == 4) ||
+                (question.getRecordType() == RecordType.AAAA && length == 16);
+    }
+
+    private static int ipv4(byte[] address) {
+        if (address.length != 4) return 0;
+        return ((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8) |
+                (address[3] & 0xFF);
+    }
+
+    private static long long8(byte[] address, int start) {
+        if (address.length != 16) return 0;
+        long value = 0;
+        for (int i = start; i < start + 8; i++)
+            value = (value << 8) | (address[i] & 0xFF);
+        return value;
     }
 
     public DNSQuestion getQuestion() {
@@ -72,7 +167,14 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getRemainingTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /**
+     * Returns the time at which this record expires, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /**
@@ -82,7 +184,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has expired, and false otherwise.
      */
     public boolean isExpired() {
-        return !expirationTime.after(new Date());
+        return expirationTime <= System.currentTimeMillis();
     }
 
     /**
@@ -92,16 +194,94 @@ public class ResourceRecord implements Serializable {
      * @param record Another resource record with potentially new information.
      */
     public void update(ResourceRecord record) {
-        if (this.expirationTime.before(record.expirationTime))
+        if (this.expirationTime < record.expirationTime)
             this.expirationTime = record.expirationTime;
     }
 
+    /**
+     * Returns a copy of this record with a new TTL, e.g., to serve it after it expired.
+     *
+     * @param ttl Number of seconds to keep the copy in cache.
+     */
+    ResourceRecord withTTL(int ttl) {
+        return new ResourceRecord(question, ttl, result, ipv4, ipv6High, ipv6Low);
+    }
+
+    /**
+     * Returns a copy of this record that expires at the given time, e.g., to restore it from a snapshot.
+     *
+     * @param expirationTime The expiration time of the copy, in milliseconds since the epoch.
+     */
+    ResourceRecord withExpirationTime(long expirationTime) {
+        ResourceRecord copy = withTTL(0);
+        copy.expirationTime = expirationTime;
+        return copy;
+    }
+
+    /**
+     * Returns the string representation of the result. For addresses and typed data it is built on every call, so
+     * callers that need it repeatedly should keep it.
+     */
     public String getTextResult() {
-        return textResult;
+        if (result == null || result instanceof InetAddress)
+            return getInetResult().getHostAddress();
+        return result.toString();
     }
 
+    /**
+     * Returns the host name this record links to (e.g., the canonical name of a CNAME record), or null if its result
+     * is not a host name.
+     */
+    public DomainName getNameResult() {
+        return result instanceof DomainName ? (DomainName) result : null;
+    }
+
+    /**
+     * Returns the typed data of this record, or null if its result is a host name or an address.
+     */
+    public RecordData getDataResult() {
+        return result instanceof RecordData ? (RecordData) result : null;
+    }
+
+    /**
+     * Returns the address of this record, or null if its result is not an address. The InetAddress is built on every
+     * call.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        if (result != null)
+            return result instanceof InetAddress ? (InetAddress) result : null;
+        try {
+            return InetAddress.getByAddress(getAddress());
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e); // only thrown for lengths other than 4 or 16
+        }
+    }
+
+    /**
+     * Returns true if the result of this record is an address.
+     */
+    boolean hasAddress() {
+        return result == null || result instanceof InetAddress;
+    }
+
+    /**
+     * Writes the address of this record to the buffer, in network order, without building an InetAddress.
+     */
+    void putAddress(ByteBuffer buffer) {
+        if (result instanceof InetAddress) {
+            buffer.put(((InetAddress) result).getAddress());
+        } else if (question.getRecordType() == RecordType.A) {
+            buffer.putInt(ipv4);
+        } else {
+            buffer.putLong(ipv6High);
+            buffer.putLong(ipv6Low);
+        }
+    }
+
+    private byte[] getAddress() {
+        ByteBuffer address = ByteBuffer.allocate(question.getRecordType() == RecordType.A ? 4 : 16);
+        putAddress(address);
+        return address.array();
     }
 
     @Override
@@ -109,18 +289,20 @@ public class ResourceRecord implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ResourceRecord that = (ResourceRecord) o;
-        return question.equals(that.question) &&
-                textResult.equals(that.textResult) &&
-                Objects.equals(inetResult, that.inetResult);
+        return question.equals(that.question) && Objects.equals(result, that.result) && ipv4 == that.ipv4 &&
+                ipv6High == that.ipv6High && ipv6Low == that.ipv6Low;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(question, textResult, inetResult);
+        int hash = question.hashCode() * 31 + Objects.hashCode(result);
+        hash = hash * 31 + ipv4;
+        hash = hash * 31 + Long.hashCode(ipv6High);
+        return hash * 31 + Long.hashCode(ipv6Low);
     }
 
     @Override
     public String toString() {
-        return "[" + question + " -> " + textResult + "]";
+        return "[" + question + " -> " + getTextResult() + "]";
     }
 }
@@ -0,0 +1,106 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The round-trip times of the recent queries to each nameserver, used to choose which nameserver of a referral to
+ * query first and how long to wait for it before hedging with another one. The last SAMPLES round-trip times of each
+ * server are kept in a ring, so percentiles follow a server whose latency changes. Following Karn's algorithm, only
+ * queries answered on their first attempt are measured; a query that gets no answer at all counts as a sample of the
+ * full timeout, so a server that stops answering sinks to the end of the order.
+ * <p>
+ * A query cancelled before its response arrived (e.g., because another server answered a hedged query first) only
+ * shows that the round-trip time is at least the time elapsed: a censored sample. Ignoring it would leave a server that
+ * turned slow with its old fast samples forever, since it would never answer first again. A censored sample that is
+ * slow for the server is recorded as twice the time elapsed, as a retransmission timeout backs off, so such a server
+ * sinks after a few hedges; one shorter than its median says nothing new and is ignored.
+ * <p>
+ * At most MAX_SERVERS servers are tracked; past that, an arbitrary server is forgotten for each new one.
+ */
+class RttEstimator {
+
+    /** The number of recent round-trip times kept for each server. */
+    static final int SAMPLES = 32;
+    /** The number of servers tracked at once. */
+    static final int MAX_SERVERS = 4096;
+
+    private final long unknownMillis;
+    private final long maxMillis;
+    private final Map<InetAddress, Samples> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an estimator with no samples.
+     *
+     * @param unknownMillis The round-trip time assumed for a server that was never measured, in milliseconds.
+     * @param maxMillis     The longest round-trip time recorded for a censored sample, e.g., the query timeout.
+     */
+    RttEstimator(long unknownMillis, long maxMillis) {
+        this.unknownMillis = unknownMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Records the round-trip time of a query to a server.
+     */
+    void record(InetAddress server, long rttMillis) {
+        Samples samples = servers.get(server);
+        if (samples == null) {
+            if (servers.size() >= MAX_SERVERS) {
+                Iterator<InetAddress> iterator = servers.keySet().iterator();
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            samples = servers.putIfAbsent(server, new Samples(rttMillis));
+            if (samples == null) return;
+        }
+        samples.add(rttMillis);
+    }
+
+    /**
+     * Records a query to a server that was cancelled after the given time without an answer, so its round-trip time
+     * is at least that long (see the class description).
+     */
+    void recordCensored(InetAddress server, long elapsedMillis) {
+        if (elapsedMillis < percentile(server, 50))
+            return;
+        record(server, Math.min(maxMillis, 2 * elapsedMillis));
+    }
+
+    /**
+     * Returns the given percentile of the recent round-trip times of a server, in milliseconds, or the round-trip time
+     * assumed for unknown servers if it was never measured.
+     *
+     * @param percentile Between 0 and 100; e.g., 50 for the median, 90 for a time that 9 queries out of 10 beat.
+     */
+    long percentile(InetAddress server, int percentile) {
+        Samples samples = servers.get(server);
+        return samples == null ? unknownMillis : samples.percentile(percentile);
+    }
+
+    private static final class Samples {
+        private final long[] ring = new long[SAMPLES];
+        private int count; // the total number of samples added, guarded by this
+
+        Samples(long rttMillis) {
+            add(rttMillis);
+        }
+
+        synchronized void add(long rttMillis) {
+            ring[count++ % SAMPLES] = rttMillis;
+            if (count == 2 * SAMPLES) count = SAMPLES; // keeps the position in the ring without overflowing
+        }
+
+        synchronized long percentile(int percentile) {
+            int size = Math.min(count, SAMPLES);
+            long[] sorted = Arrays.copyOf(ring, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (size * percentile + 99) / 100 - 1)]; // nearest rank
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends queries over TCP, used when a UDP response comes back truncated (TC bit set). Messages are framed with a
+ * two-byte length prefix, as required for DNS over TCP.
+ * <p>
+ * One connection is kept open per nameserver and reused for later queries. Several queries (from different threads)
+ * can be outstanding on the same connection at once: each is written as soon as it is ready, and whichever thread is
+ * currently reading hands responses that belong to other queries over to them, matched by transaction ID, so responses
+ * may arrive in any order (RFC 7766).
+ */
+class TCPConnectionPool {
+
+    private static final int MAX_TCP_MESSAGE_LENGTH = 0xFFFF;
+
+    private final int port;
+    private final Map<InetAddress, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool of connections to nameservers listening on the given port.
+     *
+     * @param port The TCP port of the nameservers, usually DEFAULT_DNS_PORT.
+     */
+    TCPConnectionPool(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sends a query to a nameserver over TCP and waits for its response. An open connection to the server is reused if
+     * there is one; if that connection turns out to have been closed by the server, the query is retried once on a new
+     * connection.
+     *
+     * @param server  Address of the nameserver.
+     * @param query   The query to be sent. Its data is written directly from its buffer.
+     * @param timeout Maximum time to wait for the connection and for the response, in milliseconds.
+     * @return The response with the same transaction ID as the query.
+     * @throws IOException If the connection fails or no response is received in time.
+     */
+    DNSMessage query(InetAddress server, DNSMessage query, int timeout) throws IOException {
+        Connection connection = connections.get(server);
+        if (connection != null) {
+            try {
+                return connection.query(query, timeout);
+            } catch (SocketTimeoutException e) {
+                // Either nothing arrived in time or another query is still reading; a connection that can no longer
+                // be used has already been closed, and will be replaced by the next query
+                throw e;
+            } catch (IOException e) {
+                // The server most likely closed an idle connection; try again with a new one
+                discard(server, connection);
+            }
+        }
+        connection = connect(server, timeout);
+        try {
+            return connection.query(query, timeout);
+        } catch (IOException e) {
+            discard(server, connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the connection to a server, opening one if none is open. Threads that need a connection to the same server
+     * at the same time wait for a single connection to be opened, and then share it.
+     */
+    private Connection connect(InetAddress server, int timeout) throws IOException {
+        try {
+            return connections.computeIfAbsent(server, s -> {
+                Socket socket = new Socket();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(s, port), timeout);
+                    return new Connection(socket);
+                } catch (IOException e) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void discard(InetAddress server, Connection connection) {
+        connections.remove(server, connection);
+        connection.close();
+    }
+
+    /**
+     * Returns the number of responses read on behalf of queries that have not claimed them yet.
+     */
+    int getUnclaimedResponseCount() {
+        return connections.values().stream().mapToInt(connection -> connection.arrived.size()).sum();
+    }
+
+    /**
+     * Closes all open connections.
+     */
+    void close() {
+        connections.values().forEach(Connection::close);
+        connections.clear();
+    }
+
+    /**
+     * A single connection to a nameserver, shared by all queries sent to that server.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final WritableByteChannel outChannel;
+        private final DataInputStream in;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final ReentrantLock readLock = new ReentrantLock();
+        // The transaction IDs of the queries still waiting for their response
+        private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+        // Responses read by one thread on behalf of another, by transaction ID. Only kept while their query is
+        // pending: a response that arrives after its query gave up is dropped, by the reader or by the query itself
+        private final Map<Integer, byte[]> arrived = new ConcurrentHashMap<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.outChannel = Channels.newChannel(out);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        DNSMessage query(DNSMessage query, int timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            int id = query.getID();
+            pending.add(id);
+            try {
+                return exchange(query, id, deadline);
+            } finally {
+                pending.remove(id);
+                arrived.remove(id);
+            }
+        }
+
+        private DNSMessage exchange(DNSMessage query, int id, long deadline) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeShort(query.getEncoded().remaining());
+                query.writeTo(outChannel);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+
+            // Whoever holds the read lock reads the next response, keeping it if it is its own
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    if (remaining <= 0 || !readLock.tryLock(remaining, TimeUnit.MILLISECONDS))
+                        throw new SocketTimeoutException("No TCP response for query " + id);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for query " + id);
+                }
+                try {
+                    byte[] data = arrived.remove(id);
+                    if (data == null) {
+                        socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                        try {
+                            data = readFrame();
+                        } catch (SocketTimeoutException e) {
+                            // Part of a frame may have been read, so the connection cannot be used any more
+                            close();
+                            throw e;
+                        }
+                        int receivedId = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                        if (receivedId != id) {
+                            // Checked again once stored, in case the other query gave up in between
+                            if (pending.contains(receivedId)) {
+                                arrived.put(receivedId, data);
+                                if (!pending.contains(receivedId))
+                                    arrived.remove(receivedId);
+                            }
+                            continue;
+                        }
+                    }
+                    return new DNSMessage(data, data.length);
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        }
+
+        private byte[] readFrame() throws IOException {
+            int length = in.readUnsignedShort();
+            if (length < 12 || length > MAX_TCP_MESSAGE_LENGTH)
+                throw new IOException("Invalid TCP message length " + length);
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already unusable
+            }
+        }
+    }
+}
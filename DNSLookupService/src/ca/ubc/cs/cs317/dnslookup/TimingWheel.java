@@ -0,0 +1,111 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * A hashed timing wheel: keys are scheduled for a deadline, and are handed back once the wheel has advanced past it.
+ * Time is divided in ticks (of TICK_MILLIS unless given otherwise), and each tick maps to one of SLOTS queues, so
+ * scheduling a key and advancing by one tick only touch one queue, whatever the number of keys. Deadlines more than
+ * one revolution away simply stay in their slot until the revolution in which they are due.
+ * <p>
+ * Keys can be scheduled from any thread; advance() must only be called from one thread at a time. A key scheduled
+ * while its tick is being processed may be handed back one revolution late. A key can be cancelled before its
+ * deadline: its entry no longer refers to it, and is dropped when its tick is processed.
+ *
+ * @param <K> The type of the keys.
+ */
+class TimingWheel<K> {
+
+    static final long TICK_MILLIS = 1000;
+    static final int SLOTS = 512; // must be a power of two
+
+    private final List<Queue<Entry<K>>> slots;
+    private final long tickMillis;
+    private volatile long processedTick;
+
+    TimingWheel(long now) {
+        this(now, TICK_MILLIS);
+    }
+
+    /**
+     * Creates a wheel with ticks of the given length, which is also how late a key can be handed back.
+     */
+    TimingWheel(long now, long tickMillis) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(SLOTS);
+        for (int i = 0; i < SLOTS; i++)
+            slots.add(new ConcurrentLinkedQueue<>());
+        processedTick = now / tickMillis - 1;
+    }
+
+    /**
+     * Schedules a key to be handed back by advance() once the deadline has passed. Deadlines in the past are handed
+     * back by the next call to advance().
+     *
+     * @param key      The key.
+     * @param deadline The deadline, in milliseconds since the epoch.
+     * @return The entry of the key in the wheel, which can be used to cancel it.
+     */
+    Entry<K> schedule(K key, long deadline) {
+        long tick = Math.max(deadline / tickMillis, processedTick + 1);
+        Entry<K> entry = new Entry<>(key, deadline);
+        slots.get((int) (tick & (SLOTS - 1))).add(entry);
+        return entry;
+    }
+
+    /**
+     * Processes every tick that ended before now, handing back each key whose deadline has passed, with its deadline.
+     * Keys handed back are no longer scheduled.
+     *
+     * @param now     The current time, in milliseconds since the epoch.
+     * @param expired Called for each key whose deadline has passed, with the key and its deadline.
+     */
+    void advance(long now, BiConsumer<K, Long> expired) {
+        long target = now / tickMillis - 1; // the last tick that is entirely in the past
+        // After a long pause, a single revolution visits every slot
+        long tick = Math.max(processedTick, target - SLOTS);
+        List<Entry<K>> later = new ArrayList<>();
+        while (tick < target) {
+            tick++;
+            Queue<Entry<K>> slot = slots.get((int) (tick & (SLOTS - 1)));
+            Entry<K> entry;
+            while ((entry = slot.poll()) != null) {
+                K key = entry.key;
+                if (key == null)
+                    continue; // cancelled
+                if (entry.deadline <= now)
+                    expired.accept(key, entry.deadline);
+                else
+                    later.add(entry);
+            }
+            slot.addAll(later);
+            later.clear();
+            processedTick = tick;
+        }
+    }
+
+    /**
+     * A key scheduled in the wheel.
+     */
+    static final class Entry<K> {
+        private volatile K key; // null once cancelled
+        private final long deadline;
+
+        Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the entry: the key will not be handed back, and the wheel no longer refers to it, so it can be
+         * garbage collected before the deadline.
+         */
+        void cancel() {
+            key = null;
+        }
+    }
+}
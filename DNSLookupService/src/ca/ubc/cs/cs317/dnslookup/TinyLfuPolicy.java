@@ -0,0 +1,207 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A W-TinyLFU eviction policy for a cache whose entries have a weight. New entries enter a small LRU window (1% of the
+ * capacity). Entries leaving the window are only admitted to the main space if they were used more often recently, as
+ * estimated by a FrequencySketch, than the entry the main space would evict to make room; otherwise the new entry is
+ * evicted instead. The main space is a segmented LRU: entries used again while on probation are promoted to the
+ * protected segment (80% of the main space). A scan of entries that are used only once therefore goes through the
+ * window and probation, without displacing the frequently used entries.
+ * <p>
+ * The policy only decides which keys to evict; the cache removes them. It is not thread-safe, except for
+ * recordFrequency(): callers must hold a lock for every other method.
+ *
+ * @param <K> The type of the keys.
+ */
+class TinyLfuPolicy<K> {
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+    private static final int[] EVICTION_ORDER = {PROBATION, PROTECTED, WINDOW};
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final FrequencySketch sketch;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private final Node<K>[] queues = newQueues(3);
+    private final long[] weights = new long[3];
+
+    /**
+     * @param maximum      The maximum total weight of the entries.
+     * @param expectedKeys The expected number of entries when the cache is full, to size the frequency sketch.
+     */
+    TinyLfuPolicy(long maximum, long expectedKeys) {
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, maximum / 100);
+        this.protectedMaximum = (maximum - windowMaximum) * 8 / 10;
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    /**
+     * Creates the sentinels of the given number of empty queues.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K> Node<K>[] newQueues(int count) {
+        Node<K>[] queues = (Node<K>[]) new Node<?>[count];
+        for (int i = 0; i < count; i++)
+            queues[i] = new Node<>(null, 0);
+        return queues;
+    }
+
+    /**
+     * Records a use of a key in the frequency sketch. Does not require the lock.
+     */
+    void recordFrequency(K key) {
+        sketch.increment(key.hashCode());
+    }
+
+    /**
+     * Records a read of a key that is in the cache, moving it in the LRU queues. Its frequency must be recorded
+     * separately, with recordFrequency().
+     */
+    void recordAccess(K key) {
+        Node<K> node = nodes.get(key);
+        if (node == null) return;
+        if (node.queue == PROBATION) {
+            moveTo(node, PROTECTED);
+            // Make room in the protected segment by demoting its least recently used entries back to probation
+            while (weights[PROTECTED] > protectedMaximum && queues[PROTECTED].next != node)
+                moveTo(queues[PROTECTED].next, PROBATION);
+        } else {
+            moveTo(node, node.queue);
+        }
+    }
+
+    /**
+     * Records that a key was added or updated with a new weight, and evicts entries if the cache is over capacity.
+     *
+     * @param key     The key.
+     * @param weight  The new weight of its entry.
+     * @param evictor Called with each key that must be removed from the cache. The key may be the one being written.
+     */
+    void recordWrite(K key, long weight, Consumer<K> evictor) {
+        recordFrequency(key);
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<>(key, weight);
+            nodes.put(key, node);
+            link(node, WINDOW);
+        } else {
+            updateWeight(key, weight);
+            recordAccess(key);
+        }
+        evict(evictor);
+    }
+
+    /**
+     * Changes the weight of a key without counting it as a use, e.g., when some of its records expired.
+     */
+    void updateWeight(K key, long weight) {
+        Node<K> node = nodes.get(key);
+        if (node == null) return;
+        weights[node.queue] += weight - node.weight;
+        node.weight = weight;
+    }
+
+    /**
+     * Forgets a key that was removed from the cache.
+     */
+    void remove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) unlink(node);
+    }
+
+    /**
+     * Forgets every key.
+     */
+    void clear() {
+        nodes.clear();
+        for (int queue = WINDOW; queue <= PROTECTED; queue++) {
+            queues[queue].next = queues[queue].previous = queues[queue];
+            weights[queue] = 0;
+        }
+    }
+
+    /**
+     * Returns the total weight of the entries.
+     */
+    long weightedSize() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    private void evict(Consumer<K> evictor) {
+        // Entries leaving the window compete for a place in the main space
+        while (weights[WINDOW] > windowMaximum) {
+            Node<K> candidate = queues[WINDOW].next;
+            moveTo(candidate, PROBATION);
+            admit(candidate, evictor);
+        }
+        // Only entries heavier than the whole window can still leave the cache over capacity
+        for (int queue : EVICTION_ORDER) {
+            while (weightedSize() > maximum && queues[queue].next != queues[queue])
+                evict(queues[queue].next, evictor);
+        }
+    }
+
+    /**
+     * Makes room in the main space for a candidate that was just moved to probation, by evicting either the least
+     * recently used entries of the main space, if they are used less often than the candidate, or the candidate.
+     */
+    private void admit(Node<K> candidate, Consumer<K> evictor) {
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (weights[PROBATION] + weights[PROTECTED] > maximum - windowMaximum) {
+            Node<K> victim = queues[PROBATION].next != candidate ? queues[PROBATION].next : queues[PROTECTED].next;
+            if (victim == queues[PROTECTED]) break; // the candidate is alone in the main space
+            if (sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                evict(candidate, evictor);
+                return;
+            }
+            evict(victim, evictor);
+        }
+    }
+
+    private void evict(Node<K> node, Consumer<K> evictor) {
+        nodes.remove(node.key);
+        unlink(node);
+        evictor.accept(node.key);
+    }
+
+    private void moveTo(Node<K> node, int queue) {
+        unlink(node);
+        link(node, queue);
+    }
+
+    /** Adds the node as the most recently used of the queue. */
+    private void link(Node<K> node, int queue) {
+        Node<K> head = queues[queue];
+        node.queue = queue;
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+        weights[queue] += node.weight;
+    }
+
+    private void unlink(Node<K> node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        weights[node.queue] -= node.weight;
+    }
+
+    /** An entry in one of the circular LRU queues, whose head is a sentinel: head.next is the least recently used. */
+    private static final class Node<K> {
+        private final K key;
+        private long weight;
+        private int queue;
+        private Node<K> previous = this, next = this;
+
+        Node(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmark for DNSCache under concurrent use. Like DNSMessageBenchmark, this is a plain main program:
+ *
+ * <pre>
+ *     java -cp out/production/DNSLookupService:out/test/DNSLookupService \
+ *         ca.ubc.cs.cs317.dnslookup.DNSCacheBenchmark [seconds]
+ * </pre>
+ *
+ * Each thread performs a mix of 90% reads (getCachedResults, including CNAMEs) and 10% writes (addResult) on a working
+ * set of cached questions, for 1, 8 and 32 threads. As a baseline, the same workload is run against the previous
+ * design (a TreeMap of HashSets, pruned on every read), made thread-safe with a single lock, which is the least that
+ * would be needed to share it between threads. A bounded DNSCache, with room for all the records, shows the cost of
+ * the eviction policy. Finally, the heap allocated by each read (a cache hit) is measured on a single thread.
+ */
+public class DNSCacheBenchmark {
+
+    private static final int[] THREADS = {1, 8, 32};
+    private static final int QUESTIONS = 10_000;
+    private static final int ADDRESSES = 4;
+
+    /** The operations being compared. */
+    interface Cache {
+        List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname);
+
+        void addResult(ResourceRecord record);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int q = 0; q < QUESTIONS; q++)
+            for (int a = 0; a < ADDRESSES; a++)
+                records.add(record(q, a));
+
+        for (int threads : THREADS) {
+            run("DNSCache", threads, seconds, records, wrap(new DNSCache()));
+            // Large enough to hold every record, to measure the cost of the eviction policy itself
+            run("DNSCache (bounded)", threads, seconds, records,
+                    wrap(new DNSCache(records.size(), DNSCache.Unit.RECORDS)));
+            run("synchronized TreeMap", threads, seconds, records, new LockedTreeMapCache());
+        }
+        allocation("DNSCache", records, wrap(new DNSCache()));
+        allocation("DNSCache (bounded)", records, wrap(new DNSCache(records.size(), DNSCache.Unit.RECORDS)));
+        allocation("synchronized TreeMap", records, new LockedTreeMapCache());
+    }
+
+    private static Cache wrap(DNSCache cache) {
+        return new Cache() {
+            public List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname) {
+                return cache.getCachedResults(question, includeCname);
+            }
+
+            public void addResult(ResourceRecord record) {
+                cache.addResult(record);
+            }
+        };
+    }
+
+    private static ResourceRecord record(int question, int address) throws UnknownHostException {
+        return new ResourceRecord(new DNSQuestion("host" + question + ".example.com", RecordType.A, RecordClass.IN),
+                3600, InetAddress.getByAddress(new byte[] {10, (byte) (question >> 8), (byte) question,
+                (byte) address}));
+    }
+
+    private static void run(String name, int threads, long seconds, List<ResourceRecord> records, Cache cache)
+            throws InterruptedException {
+        for (ResourceRecord record : records)
+            cache.addResult(record);
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L + 500_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while ((done & 0xFF) != 0 || System.nanoTime() < deadline) {
+                    ResourceRecord record = records.get(random.nextInt(records.size()));
+                    if (random.nextInt(10) == 0)
+                        cache.addResult(record);
+                    else if (cache.getCachedResults(record.getQuestion(), true).isEmpty())
+                        throw new AssertionError("Missing result");
+                    done++;
+                }
+                operations.add(done);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%-22s %3d threads %12.0f ops/s%n", name, threads, operations.sum() / elapsed);
+    }
+
+    private static void allocation(String name, List<ResourceRecord> records, Cache cache) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (ResourceRecord record : records)
+            cache.addResult(record);
+        int reads = 1_000_000;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < reads; i++)
+                if (cache.getCachedResults(records.get(i % records.size()).getQuestion(), true).isEmpty())
+                    throw new AssertionError("Missing result");
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            if (warmup == 1)
+                System.out.printf("%-22s %12.1f bytes/read%n", name, (double) allocated / reads);
+        }
+    }
+
+    /**
+     * The cache as it was before it was made concurrent, with every operation under one lock.
+     */
+    private static class LockedTreeMapCache implements Cache {
+        private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new TreeMap<>();
+
+        public synchronized List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname) {
+            List<ResourceRecord> returningList = new ArrayList<>();
+            Set<ResourceRecord> results = cachedResults.get(question);
+            if (results != null) {
+                results.removeIf(ResourceRecord::isExpired);
+                returningList.addAll(results);
+            }
+            if (includeCname && question.getRecordType() != RecordType.CNAME) {
+                results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME,
+                        question.getRecordClass()));
+                if (results != null) {
+                    results.removeIf(ResourceRecord::isExpired);
+                    returningList.addAll(results);
+                }
+            }
+            Collections.shuffle(returningList);
+            return returningList;
+        }
+
+        public synchronized void addResult(ResourceRecord record) {
+            if (record.isExpired()) return;
+            Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+            ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
+            if (oldRecord == null)
+                results.add(record);
+            else
+                oldRecord.update(record);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DNSCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int QUESTIONS = 50;
+    private static final int ADDRESSES = 10;
+
+    private static ResourceRecord record(int question, int address, int ttl) throws UnknownHostException {
+        return new ResourceRecord(new DNSQuestion("host" + question + ".example.com", RecordType.A, RecordClass.IN),
+                ttl, InetAddress.getByAddress(new byte[] {10, 0, (byte) question, (byte) address}));
+    }
+
+    @Test
+    public void testRootNameServers() {
+        DNSCache cache = new DNSCache();
+        assertEquals(13, cache.getCachedResults(DNSCache.rootQuestion, false).size());
+        cache.addResult(new ResourceRecord(DNSCache.rootQuestion, 3600, "a.root-servers.net"));
+        assertEquals(14, cache.getCachedResults(DNSCache.rootQuestion, false).size());
+        cache.reset();
+        assertEquals(13, cache.getCachedResults(DNSCache.rootQuestion, false).size());
+    }
+
+    @Test
+    public void testReplaceKeepsLatestExpiration() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord shorter = record(1, 1, 100);
+        ResourceRecord longer = record(1, 1, 200);
+        cache.addResult(shorter);
+        cache.addResult(longer);
+        cache.addResult(shorter);
+        List<ResourceRecord> results = cache.getCachedResults(shorter.getQuestion(), false);
+        assertEquals(1, results.size());
+        assertSame(longer, results.get(0));
+    }
+
+    @Test
+    public void testLargeRecordSetKeepsEveryRecord() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSQuestion question = new DNSQuestion("large.example.com", RecordType.A, RecordClass.IN);
+        for (int i = 0; i < 600; i++) {
+            byte[] address = {10, 1, (byte) (i >> 8), (byte) i};
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByAddress(address)));
+            cache.addResult(new ResourceRecord(question, 60, InetAddress.getByAddress(address))); // a duplicate
+        }
+        assertEquals(600, cache.getCachedResults(question, false).size());
+        // Replacing records past the size of the index
+        ResourceRecord longer = new ResourceRecord(question, 7200, InetAddress.getByAddress(new byte[] {10, 1, 2, 0}));
+        cache.addResult(longer);
+        List<ResourceRecord> results = cache.getCachedResults(question, false);
+        assertEquals(600, results.size());
+        assertTrue(results.stream().anyMatch(record -> record == longer));
+    }
+
+    @Test
+    public void testExpiredRecordsNotReturned() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord expired = record(1, 1, 0);
+        cache.addResult(expired);
+        assertTrue(cache.getCachedResults(expired.getQuestion(), false).isEmpty());
+        cache.forEachQuestion((question, records) -> assertEquals(DNSCache.rootQuestion, question));
+    }
+
+    @Test
+    public void testSweepRemovesExpiredRecords() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord shortLived = record(1, 1, 1);
+        ResourceRecord longLived = record(1, 2, 3600);
+        ResourceRecord neverQueried = record(2, 1, 2);
+        cache.addResult(shortLived);
+        cache.addResult(longLived);
+        cache.addResult(neverQueried);
+        assertEquals(3, cache.size());
+
+        long now = System.currentTimeMillis();
+        cache.sweep(now);
+        assertEquals(3, cache.size());
+        cache.sweep(now + 3500);
+        assertEquals(2, cache.size());
+        assertEquals(Collections.singletonList(longLived), cache.getCachedResults(longLived.getQuestion(), false));
+        cache.sweep(now + 3_600_000 + 2000);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCapacityInRecords() throws Exception {
+        DNSCache cache = new DNSCache(100, DNSCache.Unit.RECORDS);
+        for (int q = 0; q < 50; q++)
+            for (int a = 0; a < 4; a++)
+                cache.addResult(record(q, a, 3600));
+        int cached = 0;
+        for (int q = 0; q < 50; q++)
+            cached += cache.getCachedResults(record(q, 0, 0).getQuestion(), false).size();
+        assertTrue(cached <= 100, "Capacity exceeded: " + cached);
+        assertEquals(200 - cached, cache.getEvictedRecordCount());
+        assertTrue(cache.getEvictionCount() >= 25);
+        assertEquals(13, cache.getCachedResults(DNSCache.rootQuestion, false).size());
+    }
+
+    /**
+     * A scan of names looked up once must not evict names that are in frequent use.
+     */
+    @Test
+    public void testScanDoesNotFlushHotEntries() throws Exception {
+        DNSCache cache = new DNSCache(100, DNSCache.Unit.RECORDS);
+        for (int round = 0; round < 5; round++) {
+            for (int q = 0; q < 50; q++) {
+                if (cache.getCachedResults(record(q, 0, 0).getQuestion(), false).isEmpty())
+                    cache.addResult(record(q, 0, 3600));
+            }
+        }
+        for (int q = 1000; q < 3000; q++) {
+            cache.getCachedResults(record(q, 0, 0).getQuestion(), false);
+            cache.addResult(record(q, 0, 3600));
+        }
+        int hot = 0;
+        for (int q = 0; q < 50; q++) {
+            if (!cache.getCachedResults(record(q, 0, 0).getQuestion(), false).isEmpty())
+                hot++;
+        }
+        assertTrue(hot >= 45, "Only " + hot + " frequently used names left after scan");
+        assertTrue(cache.getEvictionCount() >= 1900);
+    }
+
+    @Test
+    public void testCapacityInBytes() throws Exception {
+        DNSCache cache = new DNSCache(64 * 1024, DNSCache.Unit.BYTES);
+        for (int q = 0; q < 5000; q++)
+            cache.addResult(record(q, 0, 3600));
+        assertTrue(cache.size() < 1000, "Too many names cached: " + cache.size());
+        assertTrue(cache.getEvictionCount() > 4000);
+    }
+
+    @Test
+    public void testCnameIncluded() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord address = record(1, 1, 100);
+        ResourceRecord cname = new ResourceRecord(new DNSQuestion(address.getHostName(), RecordType.CNAME,
+                RecordClass.IN), 100, "canonical.example.com");
+        cache.addResult(address);
+        cache.addResult(cname);
+        assertEquals(1, cache.getCachedResults(address.getQuestion(), false).size());
+        assertEquals(new HashSet<>(Arrays.asList(address, cname)),
+                new HashSet<>(cache.getCachedResults(address.getQuestion(), true)));
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        DNSCache cache = new DNSCache();
+        for (int address = 0; address < 3; address++)
+            cache.addResult(record(1, address, 100));
+        DNSQuestion question = record(1, 0, 100).getQuestion();
+        List<ResourceRecord> first = cache.getCachedResults(question, false);
+        List<ResourceRecord> second = cache.getCachedResults(question, false);
+        assertEquals(3, new HashSet<>(first).size());
+        assertEquals(new HashSet<>(first), new HashSet<>(second));
+        for (int i = 0; i < 3; i++)
+            assertSame(first.get((i + 1) % 3), second.get(i));
+        cache.getCachedResults(question, false);
+        assertSame(first, cache.getCachedResults(question, false));
+        assertThrows(UnsupportedOperationException.class, () -> first.add(record(1, 5, 100)));
+    }
+
+    @Test
+    public void testNegativeAnswers() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord address = record(1, 1, 3600);
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN), 60,
+                new RecordData.SOA("ns.example.com", "admin.example.com", 1, 3600, 600, 86400, 3600));
+        assertFalse(cache.getCachedResults(address.getQuestion(), true).isNegative());
+
+        NegativeAnswer negative = new NegativeAnswer(address.getQuestion(), NegativeAnswer.Kind.NXDOMAIN, soa);
+        assertTrue(negative.getRemainingTTL() <= 60, "TTL not bounded by the SOA TTL");
+        cache.addNegativeResult(negative);
+        CachedResults results = cache.getCachedResults(address.getQuestion(), true);
+        assertTrue(results.isEmpty());
+        assertSame(negative, results.getNegativeAnswer());
+        cache.forEachQuestion((question, records) -> assertEquals(DNSCache.rootQuestion, question));
+
+        // A record proves the name exists, and is not replaced by a later negative answer
+        cache.addResult(address);
+        assertEquals(Collections.singletonList(address), cache.getCachedResults(address.getQuestion(), true));
+        cache.addNegativeResult(negative);
+        assertFalse(cache.getCachedResults(address.getQuestion(), true).isNegative());
+
+        ResourceRecord other = record(2, 1, 0);
+        cache.addNegativeResult(new NegativeAnswer(other.getQuestion(), NegativeAnswer.Kind.NODATA, soa));
+        assertEquals(3, cache.size());
+        cache.sweep(System.currentTimeMillis() + 62_000);
+        assertEquals(2, cache.size());
+        assertFalse(cache.getCachedResults(other.getQuestion(), true).isNegative());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        DNSCache cache = new DNSCache();
+        List<DNSQuestion> refreshed = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        cache.setRefreshAhead(0.5, 3, question -> {
+            refreshed.add(question);
+            return pending;
+        });
+        ResourceRecord hot = record(1, 1, 1);
+        ResourceRecord cold = record(2, 1, 1);
+        cache.addResult(hot);
+        cache.addResult(cold);
+        for (int i = 0; i < 5; i++)
+            cache.getCachedResults(hot.getQuestion(), false);
+        assertTrue(refreshed.isEmpty(), "Refreshed too early");
+
+        Thread.sleep(700);
+        cache.getCachedResults(cold.getQuestion(), false);
+        for (int i = 0; i < 10; i++)
+            assertEquals(1, cache.getCachedResults(hot.getQuestion(), false).size());
+        assertEquals(Collections.singletonList(hot.getQuestion()), refreshed);
+
+        // The refresh replaces the record, which is then far from expiring
+        cache.addResult(record(1, 1, 3600));
+        pending.complete(null);
+        for (int i = 0; i < 10; i++)
+            cache.getCachedResults(hot.getQuestion(), false);
+        assertEquals(1, cache.getRefreshCount());
+    }
+
+    @Test
+    public void testStaleRecords() throws Exception {
+        DNSCache cache = new DNSCache();
+        ResourceRecord record = record(1, 1, 1);
+        cache.addResult(record);
+        cache.setStaleWindow(60);
+        assertEquals(60, cache.getStaleWindow());
+        ResourceRecord kept = record(2, 1, 1);
+        cache.addResult(kept);
+        Thread.sleep(1200);
+
+        assertTrue(cache.getCachedResults(kept.getQuestion(), true).isEmpty());
+        List<ResourceRecord> stale = cache.getStaleResults(kept.getQuestion(), true);
+        assertEquals(Collections.singletonList(kept), stale);
+        assertTrue(stale.get(0).getRemainingTTL() > DNSCache.STALE_TTL - 5, "Stale record served without a TTL");
+
+        long now = System.currentTimeMillis();
+        cache.sweep(now);
+        assertEquals(3, cache.size());
+        // Added before the window was set, but kept according to the new window
+        assertEquals(1, cache.getStaleResults(record.getQuestion(), false).size());
+        cache.sweep(now + 62_000);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getStaleResults(kept.getQuestion(), true).isEmpty());
+
+        cache.setStaleWindow(0);
+        assertTrue(new DNSCache().getStaleResults(kept.getQuestion(), true).isEmpty());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        DNSCache cache = new DNSCache();
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int q = 0; q < 200; q++)
+            for (int a = 0; a < 20; a++)
+                records.add(record(q, a, 100 + q));
+        DNSQuestion name = new DNSQuestion("example.com", RecordType.A, RecordClass.IN);
+        records.add(new ResourceRecord(new DNSQuestion("example.com", RecordType.AAAA, RecordClass.IN), 600,
+                InetAddress.getByName("2001:db8::1")));
+        records.add(new ResourceRecord(new DNSQuestion("www.example.com", RecordType.CNAME, RecordClass.IN), 600,
+                "example.com"));
+        records.add(new ResourceRecord(new DNSQuestion("example.com", RecordType.NS, RecordClass.IN), 600,
+                "ns.example.com"));
+        records.add(new ResourceRecord(new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN), 600,
+                new RecordData.SOA("ns.example.com", "admin.example.com", 1, 3600, 600, 86400, 300)));
+        records.add(new ResourceRecord(new DNSQuestion("_dns._udp.example.com", RecordType.SRV, RecordClass.IN),
+                600, new RecordData.SRV(10, 5, 53, "ns.example.com")));
+        records.add(new ResourceRecord(new DNSQuestion("example.com", RecordType.TXT, RecordClass.IN), 600,
+                new RecordData.TXT(new byte[] {5, 'h', 'e', 'l', 'l', 'o'})));
+        records.forEach(cache::addResult);
+
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            assertEquals(records.size(), cache.saveSnapshot(file));
+            DNSCache restored = new DNSCache();
+            assertEquals(records.size(), restored.loadSnapshot(file));
+            Map<ResourceRecord, Long> expirations = new HashMap<>();
+            restored.forEachRecord((question, record) -> {
+                if (!question.equals(DNSCache.rootQuestion))
+                    expirations.put(record, record.getExpirationTime());
+            });
+            assertEquals(records.size(), expirations.size());
+            for (ResourceRecord record : records) {
+                Long expiration = expirations.get(record);
+                assertNotNull(expiration, "Record not restored: " + record);
+                assertTrue(Math.abs(expiration - record.getExpirationTime()) < 1000, "Expiration not kept: " + record);
+            }
+            assertTrue(restored.getCachedResults(name, true).isEmpty());
+
+            Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+            assertThrows(java.io.IOException.class, () -> restored.loadSnapshot(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSnapshotSkipsOversizedRecord() throws Exception {
+        // The owner name of the skipped record is written before its data overflows the message
+        byte[] text = new byte[0x10000];
+        for (int pos = 0; pos < text.length; pos += 256)
+            text[pos] = (byte) 255;
+        List<ResourceRecord> records = Arrays.asList(
+                new ResourceRecord(new DNSQuestion("big.example.com", RecordType.A, RecordClass.IN), 600,
+                        InetAddress.getByName("10.0.0.1")),
+                new ResourceRecord(new DNSQuestion("www.big.example.com", RecordType.A, RecordClass.IN), 600,
+                        InetAddress.getByName("10.0.0.2")));
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            try (CacheSnapshot.Writer writer = CacheSnapshot.create(file, System.currentTimeMillis())) {
+                writer.add(new ResourceRecord(new DNSQuestion("big.example.com", RecordType.TXT, RecordClass.IN),
+                        600, new RecordData.TXT(text)));
+                records.forEach(record -> assertDoesNotThrow(() -> writer.add(record)));
+                assertEquals(records.size(), writer.getCount());
+                writer.commit();
+            }
+            List<ResourceRecord> restored = new ArrayList<>();
+            assertEquals(records.size(), CacheSnapshot.read(file, restored::add));
+            assertEquals(records, restored);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(record(1, 1, 600));
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            assertEquals(1, cache.saveSnapshot(file));
+            // The first label of the first name: file header (16), message length (2) and message header (12)
+            byte[] data = Files.readAllBytes(file);
+            data[30] = 0x43;
+            Files.write(file, data);
+            DNSCache restored = new DNSCache();
+            assertThrows(java.io.IOException.class, () -> restored.loadSnapshot(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testClosestNameServer() throws Exception {
+        DNSCache cache = new DNSCache();
+        DomainName name = DomainName.of("www.cs.ubc.ca");
+        assertNull(cache.getClosestNameServer(name));
+        cache.addResult(new ResourceRecord(new DNSQuestion("ca", RecordType.NS, RecordClass.IN), 3600, "ns.ca"));
+        cache.addResult(new ResourceRecord(new DNSQuestion("ns.ca", RecordType.A, RecordClass.IN), 3600,
+                InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord(new DNSQuestion("ubc.ca", RecordType.NS, RecordClass.IN), 3600,
+                "ns1.ubc.ca"));
+        cache.addResult(new ResourceRecord(new DNSQuestion("ns1.ubc.ca", RecordType.A, RecordClass.IN), 3600,
+                InetAddress.getByName("10.0.0.2")));
+        // A deeper zone whose nameserver has no known address cannot be used yet
+        cache.addResult(new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN), 1,
+                "ns.cs.ubc.ca"));
+        // NS records are only a starting point once they are known to come from a referral
+        assertNull(cache.getClosestNameServer(name));
+        for (String zone : new String[] {"ca", "ubc.ca", "cs.ubc.ca"})
+            cache.addDelegation(DomainName.of(zone));
+
+        assertEquals(InetAddress.getByName("10.0.0.2"), cache.getClosestNameServer(name));
+        assertEquals(DomainName.of("ubc.ca"), cache.getClosestZone(name));
+        assertEquals(InetAddress.getByName("10.0.0.2"), cache.getClosestNameServer(DomainName.of("ubc.ca")));
+        assertEquals(InetAddress.getByName("10.0.0.1"), cache.getClosestNameServer(DomainName.of("sfu.ca")));
+        assertNull(cache.getClosestNameServer(DomainName.of("example.com")));
+
+        cache.addResult(new ResourceRecord(new DNSQuestion("ns.cs.ubc.ca", RecordType.A, RecordClass.IN), 3600,
+                InetAddress.getByName("10.0.0.3")));
+        assertEquals(InetAddress.getByName("10.0.0.3"), cache.getClosestNameServer(name));
+        cache.addResult(new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN), 1,
+                "ns2.cs.ubc.ca"));
+        cache.addResult(new ResourceRecord(new DNSQuestion("ns2.cs.ubc.ca", RecordType.A, RecordClass.IN), 3600,
+                InetAddress.getByName("10.0.0.4")));
+        assertEquals(Set.of(InetAddress.getByName("10.0.0.3"), InetAddress.getByName("10.0.0.4")),
+                new HashSet<>(cache.getClosestNameServers(name)));
+        // Once the NS records of the zone expire and are swept, lookups start at its parent again
+        cache.sweep(System.currentTimeMillis() + 3000);
+        assertEquals(InetAddress.getByName("10.0.0.2"), cache.getClosestNameServer(name));
+        cache.addResult(new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN), 3600,
+                "ns.cs.ubc.ca"));
+        assertEquals(InetAddress.getByName("10.0.0.2"), cache.getClosestNameServer(name));
+
+        cache.reset();
+        assertNull(cache.getClosestNameServer(name));
+    }
+
+    /**
+     * Several threads add the same records with different TTLs while others read them. Readers must never see
+     * duplicates, and in the end every record must be cached exactly once, with the longest TTL.
+     */
+    @Test
+    public void testConcurrentAddAndRead() throws Exception {
+        DNSCache cache = new DNSCache();
+        ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int ttl = 1000 + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < 20; round++)
+                    for (int q = 0; q < QUESTIONS; q++)
+                        for (int a = 0; a < ADDRESSES; a++)
+                            cache.addResult(record(q, a, ttl));
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < 200; round++) {
+                    for (int q = 0; q < QUESTIONS; q++) {
+                        List<ResourceRecord> results = cache.getCachedResults(record(q, 0, 0).getQuestion(), true);
+                        assertTrue(results.size() <= ADDRESSES, "Too many results");
+                        assertEquals(results.size(), new HashSet<>(results).size(), "Duplicate results");
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures)
+                future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int q = 0; q < QUESTIONS; q++) {
+            List<ResourceRecord> results = cache.getCachedResults(record(q, 0, 0).getQuestion(), false);
+            assertEquals(ADDRESSES, results.size());
+            for (ResourceRecord result : results)
+                assertTrue(result.getRemainingTTL() > 1000 + THREADS - 2, "Record with longest TTL not kept");
+        }
+    }
+}
@@ -51,9 +51,15 @@ public class DNSLookupServiceTest {
         Assertions.assertEquals(1, message.getQDCount(), "Incorrect number of queries");
         Assertions.assertEquals(0, message.getANCount(), "Incorrect number of answers");
         Assertions.assertEquals(0, message.getNSCount(), "Incorrect number of nameservers");
-        Assertions.assertEquals(0, message.getARCount(), "Incorrect number of additional records");
+        Assertions.assertEquals(service.getEDNSPayloadSize() > 0 ? 1 : 0, message.getARCount(),
+                "Incorrect number of additional records");
 
         Assertions.assertEquals(question, message.getQuestion(), "Question not correctly encoded");
+        if (service.getEDNSPayloadSize() > 0) {
+            Assertions.assertEquals(RecordType.OPT, message.getRR().getRecordType(), "OPT record not encoded");
+            Assertions.assertEquals(service.getEDNSPayloadSize(), message.getEDNSPayloadSize(),
+                    "Incorrect EDNS payload size");
+        }
 
         return receivedTransactionId;
     }
@@ -114,6 +120,12 @@ public class DNSLookupServiceTest {
         buildQueryCommonTest(new DNSQuestion("ubc.ca", RecordType.A, RecordClass.IN));
     }
 
+    @Test
+    public void testBuildQueryWithoutEDNS() {
+        service.setEDNSPayloadSize(0);
+        buildQueryCommonTest(new DNSQuestion("ubc.ca", RecordType.A, RecordClass.IN));
+    }
+
     @Test
     public void testProcessResponseSingleAnswer() throws UnknownHostException {
         DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
@@ -127,6 +139,534 @@ public class DNSLookupServiceTest {
                 Collections.emptySet(), Collections.emptySet());
     }
 
+    @Test
+    public void testProcessResponseNegative() {
+        DNSQuestion missing = new DNSQuestion("missing.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion noAddress = new DNSQuestion("cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN), 3600,
+                new RecordData.SOA("ns1.cs.ubc.ca", "hostmaster.cs.ubc.ca", 1, 3600, 600, 86400, 300));
+        processResponseCommonTest(true, 3, Collections.singleton(missing), Collections.emptySet(),
+                Collections.singleton(soa), Collections.emptySet());
+        processResponseCommonTest(true, 0, Collections.singleton(noAddress), Collections.emptySet(),
+                Collections.singleton(soa), Collections.emptySet());
+
+        CachedResults results = cache.getCachedResults(missing, true);
+        Assertions.assertTrue(results.isEmpty());
+        Assertions.assertTrue(results.isNegative(), "NXDOMAIN not cached");
+        Assertions.assertEquals(NegativeAnswer.Kind.NXDOMAIN, results.getNegativeAnswer().getKind());
+        Assertions.assertTrue(results.getNegativeAnswer().getRemainingTTL() <= 300, "TTL not bounded by SOA minimum");
+        Assertions.assertEquals(NegativeAnswer.Kind.NODATA,
+                cache.getCachedResults(noAddress, true).getNegativeAnswer().getKind());
+        Assertions.assertFalse(cache.getCachedResults(new DNSQuestion("missing.cs.ubc.ca", RecordType.MX,
+                RecordClass.IN), true).isNegative(), "Negative answer cached for another type");
+        Assertions.assertTrue(service.getResults(missing).isEmpty());
+    }
+
+    @Test
+    public void testServeStale() throws Exception {
+        DNSQuestion question = new DNSQuestion("stale.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord record = new ResourceRecord(question, 1, InetAddress.getByName("10.1.2.3"));
+        service.setServeStale(60, 100);
+        try {
+            cache.addResult(record);
+            Thread.sleep(1200);
+            // Nothing answers on the nameserver, so the stale record is served once the deadline has passed
+            long start = System.currentTimeMillis();
+            Collection<ResourceRecord> results = service.getResults(question);
+            Assertions.assertTrue(System.currentTimeMillis() - start < DNSLookupService.SO_TIMEOUT,
+                    "Lookup did not stop at the deadline");
+            Assertions.assertEquals(Collections.singletonList(record), new ArrayList<>(results));
+            Assertions.assertTrue(results.iterator().next().getRemainingTTL() <= DNSCache.STALE_TTL);
+        } finally {
+            service.setServeStale(0, DNSLookupService.DEFAULT_STALE_ANSWER_DEADLINE);
+            service.close();
+        }
+    }
+
+    @Test
+    public void testBackgroundLookupsDoNotWaitForEachOther() throws Exception {
+        DNSQuestion unreachable = new DNSQuestion("www.down.stale.test", RecordType.A, RecordClass.IN);
+        DNSQuestion reachable = new DNSQuestion("www.up.stale.test", RecordType.A, RecordClass.IN);
+        // The nameserver never answers for the first name, so its background lookup goes on for all its attempts
+        try (StubServer server = new StubServer((query, count) ->
+                query.getQuestion(0).equals(unreachable) ? null : answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                local.setServeStale(60, 1000);
+                cache.addResult(new ResourceRecord(unreachable, 1, InetAddress.getByName("10.9.9.9")));
+                cache.addResult(new ResourceRecord(reachable, 1, InetAddress.getByName("10.9.9.8")));
+                Thread.sleep(1200);
+
+                CompletableFuture<Collection<ResourceRecord>> stale = local.getResultsAsync(unreachable);
+                Collection<ResourceRecord> fresh = local.getResultsAsync(reachable).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals("10.0.0.1", fresh.iterator().next().getTextResult(),
+                        "Background lookup waited behind one that gets no answer");
+                Assertions.assertEquals("10.9.9.9", stale.get(5, TimeUnit.SECONDS).iterator().next().getTextResult());
+            } finally {
+                local.setServeStale(0, DNSLookupService.DEFAULT_STALE_ANSWER_DEADLINE);
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testServeStaleSharedBetweenServices() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.shared.stale.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> answer(query).getUsed())) {
+            DNSLookupService stale = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            DNSLookupService other = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                stale.setServeStale(60, 1000);
+                cache.addResult(new ResourceRecord(question, 1, InetAddress.getByName("10.9.9.7")));
+                Thread.sleep(1200);
+
+                // The other service did not enable serve-stale, but still finds the stale record, and resolves the
+                // question itself instead of settling for it
+                Collection<ResourceRecord> results = other.getResultsAsync(question).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals("10.0.0.1", results.iterator().next().getTextResult());
+                Assertions.assertEquals(1, server.asked(question));
+
+                other.close();
+                Assertions.assertEquals(60, cache.getStaleWindow(), "Closing another service reset the window");
+                stale.close();
+                Assertions.assertEquals(0, cache.getStaleWindow());
+            } finally {
+                stale.close();
+                other.close();
+                cache.setStaleWindow(0);
+            }
+        }
+    }
+
+    /**
+     * A local nameserver that answers each query with the response data built by a handler, which gets the query and
+     * the number of times its question was asked before, or ignores it if the handler returns null.
+     */
+    private static class StubServer implements AutoCloseable {
+        private final DatagramSocket socket;
+        private final Map<DNSQuestion, AtomicInteger> asked = new ConcurrentHashMap<>();
+
+        StubServer(java.util.function.BiFunction<DNSMessage, Integer, byte[]> handler) throws SocketException {
+            this(InetAddress.getLoopbackAddress(), 0, handler);
+        }
+
+        StubServer(InetAddress address, int port, java.util.function.BiFunction<DNSMessage, Integer, byte[]> handler)
+                throws SocketException {
+            socket = new DatagramSocket(port, address);
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[512];
+                while (!socket.isClosed()) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        int length = packet.getLength();
+                        DNSMessage query = new DNSMessage(Arrays.copyOf(buffer, length), length);
+                        int count = asked.computeIfAbsent(query.getQuestion(0), q -> new AtomicInteger())
+                                .getAndIncrement();
+                        byte[] data = handler.apply(query, count);
+                        if (data == null) continue;
+                        socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "stub-nameserver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        int asked(DNSQuestion question) {
+            AtomicInteger count = asked.get(question);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * Answers the question of a query: names starting with "www." have the address 10.0.0.1, names starting with
+     * "ns" have the address of the local server, and names starting with "alias." are CNAMEs for the "www." name of
+     * the same domain. Any other name or type has no records.
+     */
+    private static DNSMessage answer(DNSMessage query) {
+        DNSQuestion question = query.getQuestion(0);
+        DNSMessage response = new DNSMessage((short) query.getID());
+        response.setQR(true);
+        response.setAA(true);
+        response.addQuestion(question);
+        String name = question.getHostName();
+        try {
+            if (name.startsWith("alias."))
+                response.addResourceRecord(new ResourceRecord(new DNSQuestion(name, RecordType.CNAME,
+                        RecordClass.IN), 300, "www." + name.substring("alias.".length())), "answer");
+            else if (question.getRecordType() == RecordType.A && name.startsWith("www."))
+                response.addResourceRecord(new ResourceRecord(question, 300, InetAddress.getByName("10.0.0.1")),
+                        "answer");
+            else if (question.getRecordType() == RecordType.A && name.startsWith("ns"))
+                response.addResourceRecord(new ResourceRecord(question, 300, InetAddress.getLoopbackAddress()),
+                        "answer");
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+        return response;
+    }
+
+    /**
+     * Refers a query to the nameserver of a zone, with or without its address in the additional section.
+     */
+    private static DNSMessage referral(DNSMessage query, String zone, String nameserver, boolean glue) {
+        DNSMessage response = new DNSMessage((short) query.getID());
+        response.setQR(true);
+        response.addQuestion(query.getQuestion(0));
+        response.addResourceRecord(new ResourceRecord(new DNSQuestion(zone, RecordType.NS, RecordClass.IN), 300,
+                nameserver), "nameserver");
+        if (glue)
+            response.addResourceRecord(new ResourceRecord(new DNSQuestion(nameserver, RecordType.A, RecordClass.IN),
+                    300, InetAddress.getLoopbackAddress()), "additional");
+        return response;
+    }
+
+    @Test
+    public void testGetResultsAsyncFollowsReferrals() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.glue.async.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> count == 0
+                ? referral(query, "glue.async.test", "ns.glue.async.test", true).getUsed()
+                : answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                Collection<ResourceRecord> results = local.getResultsAsync(question).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, results.size());
+                Assertions.assertEquals("10.0.0.1", results.iterator().next().getTextResult());
+                Assertions.assertEquals(2, server.asked(question));
+
+                CompletableFuture<Collection<ResourceRecord>> cached = local.getResultsAsync(question);
+                Assertions.assertTrue(cached.isDone(), "Cached results not returned immediately");
+                Assertions.assertEquals(results, cached.get());
+                Assertions.assertEquals(2, server.asked(question));
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOutOfBailiwickReferralIsNotAZoneCut() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.victim.bailiwick.test", RecordType.A, RecordClass.IN);
+        // The nameserver of victim.bailiwick.test refers the question to nameservers for its parent zone, which it is
+        // not responsible for
+        try (StubServer server = new StubServer((query, count) -> {
+            if (!query.getQuestion(0).equals(question) || count == 2)
+                return answer(query).getUsed();
+            if (count == 0)
+                return referral(query, "victim.bailiwick.test", "ns.victim.bailiwick.test", true).getUsed();
+            return referral(query, "bailiwick.test", "ns.evil.test", true).getUsed();
+        })) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                Assertions.assertEquals(1, local.getResultsAsync(question).get(5, TimeUnit.SECONDS).size());
+                Assertions.assertEquals(3, server.asked(question));
+                Assertions.assertFalse(cache.getCachedResults(new DNSQuestion("bailiwick.test", RecordType.NS,
+                        RecordClass.IN), false).isEmpty());
+                Assertions.assertEquals(DomainName.of("victim.bailiwick.test"),
+                        cache.getClosestZone(question.getDomainName()));
+                Assertions.assertNull(cache.getClosestZone(DomainName.of("www.other.bailiwick.test")),
+                        "Out-of-bailiwick referral used as a zone cut");
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testGetResultsAsyncGluelessReferral() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.glueless.async.test", RecordType.A, RecordClass.IN);
+        DNSQuestion nameserver = new DNSQuestion("ns.elsewhere.async.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> query.getQuestion(0).equals(question) && count == 0
+                ? referral(query, "glueless.async.test", nameserver.getHostName(), false).getUsed()
+                : answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                Collection<ResourceRecord> results = local.getResultsAsync(question).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, results.size());
+                Assertions.assertEquals(1, server.asked(nameserver), "Nameserver address not looked up");
+                Assertions.assertEquals(2, server.asked(question));
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    /**
+     * Sleeps in a StubServer handler, so that the lookups waiting for its response pile up.
+     */
+    private static void delay() {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareQueries() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.storm.async.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> {
+            if (count > 0) return answer(query).getUsed();
+            delay();
+            return referral(query, "storm.async.test", "ns.storm.async.test", true).getUsed();
+        })) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                List<CompletableFuture<Collection<ResourceRecord>>> lookups = new ArrayList<>();
+                for (int i = 0; i < 100; i++)
+                    lookups.add(local.getResultsAsync(question));
+                for (CompletableFuture<Collection<ResourceRecord>> lookup : lookups)
+                    Assertions.assertEquals(1, lookup.get(5, TimeUnit.SECONDS).size());
+                Assertions.assertEquals(2, server.asked(question));
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareNameserverLookup() throws Exception {
+        DNSQuestion nameserver = new DNSQuestion("ns.shared.elsewhere.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> {
+            DNSQuestion question = query.getQuestion(0);
+            if (question.equals(nameserver)) {
+                delay();
+                return answer(query).getUsed();
+            }
+            return count == 0 ? referral(query, "shared.async.test", nameserver.getHostName(), false).getUsed()
+                    : answer(query).getUsed();
+        })) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                List<CompletableFuture<Collection<ResourceRecord>>> lookups = new ArrayList<>();
+                for (int i = 0; i < 20; i++)
+                    lookups.add(local.getResultsAsync(new DNSQuestion("www." + i + ".shared.async.test",
+                            RecordType.A, RecordClass.IN)));
+                for (CompletableFuture<Collection<ResourceRecord>> lookup : lookups)
+                    Assertions.assertEquals(1, lookup.get(5, TimeUnit.SECONDS).size());
+                Assertions.assertEquals(1, server.asked(nameserver));
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testNameserverInItsOwnZoneDoesNotDeadlock() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.cycle.async.test", RecordType.A, RecordClass.IN);
+        // Every name in the zone, including its nameserver, is referred to that nameserver, without glue
+        try (StubServer server = new StubServer((query, count) ->
+                referral(query, "cycle.async.test", "ns.cycle.async.test", false).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                        () -> local.getResultsAsync(question).get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof DNSLookupService.LookupFailedException);
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHedgesSlowNameserver() throws Exception {
+        InetAddress fast = InetAddress.getByName("127.0.0.2");
+        InetAddress slow = InetAddress.getByName("127.0.0.3");
+        DNSQuestion warmup = new DNSQuestion("www.warmup.hedge.test", RecordType.A, RecordClass.IN);
+        DNSQuestion question = new DNSQuestion("www.slow.hedge.test", RecordType.A, RecordClass.IN);
+        try (StubServer root = new StubServer((query, count) ->
+                referral(query, "hedge.test", "ns1.hedge.test", false).getUsed());
+             StubServer ns1 = new StubServer(slow, root.getPort(), (query, count) ->
+                     query.getQuestion(0).getHostName().endsWith("slow.hedge.test") ? null
+                             : answer(query).getUsed());
+             StubServer ns2 = new StubServer(fast, root.getPort(), (query, count) -> answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), root.getPort());
+            try {
+                DNSCache cache = DNSCache.getInstance();
+                cache.addResult(new ResourceRecord(new DNSQuestion("ns1.hedge.test", RecordType.A, RecordClass.IN),
+                        300, slow));
+                cache.addResult(new ResourceRecord(new DNSQuestion("ns2.hedge.test", RecordType.A, RecordClass.IN),
+                        300, fast));
+                Assertions.assertEquals(1, local.getResultsAsync(warmup).get(5, TimeUnit.SECONDS).size());
+                // The lookup now starts at both nameservers of the zone; the first one answered quickly, so it is
+                // queried first, but it does not answer this time
+                cache.addResult(new ResourceRecord(new DNSQuestion("hedge.test", RecordType.NS, RecordClass.IN), 300,
+                        "ns2.hedge.test"));
+
+                long start = System.nanoTime();
+                Collection<ResourceRecord> results = local.getResultsAsync(question).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(1, results.size());
+                Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2),
+                        "Waited for the slow nameserver to time out");
+                Assertions.assertEquals(1, ns1.asked(question));
+                Assertions.assertEquals(1, ns2.asked(question));
+
+                // Each hedge shows ns1 is slower than its samples say, until ns2 is always queried first
+                for (int i = 0; i < 5; i++) {
+                    DNSQuestion next = new DNSQuestion("www." + i + ".slow.hedge.test", RecordType.A, RecordClass.IN);
+                    Assertions.assertEquals(1, local.getResultsAsync(next).get(5, TimeUnit.SECONDS).size());
+                    if (i >= 2)
+                        Assertions.assertEquals(0, ns1.asked(next), "The slow nameserver is still queried first");
+                }
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRefreshAheadRenewsRecordsBeforeExpiry() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.refresh.async.test", RecordType.A, RecordClass.IN);
+        DNSQuestion nameserver = new DNSQuestion("ns.refresh.async.test", RecordType.A, RecordClass.IN);
+        // Every other query is a referral, whose glue expires before the answer, so the refresh starts at the root
+        // again and must follow the referral although the records being refreshed are still cached
+        try (StubServer server = new StubServer((query, count) -> {
+            DNSMessage response;
+            if (count % 2 == 0) {
+                response = referral(query, "refresh.async.test", nameserver.getHostName(), false);
+                response.addResourceRecord(new ResourceRecord(nameserver, 1, InetAddress.getLoopbackAddress()),
+                        "additional");
+            } else {
+                response = new DNSMessage((short) query.getID());
+                response.setQR(true);
+                response.setAA(true);
+                response.addQuestion(question);
+                try {
+                    response.addResourceRecord(new ResourceRecord(question, 3, InetAddress.getByName("10.0.0.1")),
+                            "answer");
+                } catch (UnknownHostException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return response.getUsed();
+        })) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                local.setRefreshAhead(0.5, 1);
+                Assertions.assertEquals(1, local.getResultsAsync(question).get(5, TimeUnit.SECONDS).size());
+                DNSCache cache = DNSCache.getInstance();
+                long expiration = cache.getLatestExpiration(question);
+
+                Thread.sleep(1700); // past the glue, and into the last half of the TTL of the answer
+                Assertions.assertFalse(local.getResults(question).isEmpty());
+                long deadline = System.currentTimeMillis() + 2000;
+                while (cache.getLatestExpiration(question) == expiration && System.currentTimeMillis() < deadline)
+                    Thread.sleep(20);
+                Assertions.assertTrue(cache.getLatestExpiration(question) > expiration, "Records not refreshed");
+                Assertions.assertTrue(System.currentTimeMillis() < expiration, "Refreshed after the records expired");
+                Assertions.assertEquals(4, server.asked(question));
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testClosingServiceKeepsRefreshAheadOfAnother() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        DNSLookupService first = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        DNSLookupService second = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        try {
+            first.setRefreshAhead(0.5, 1);
+            second.close();
+            Assertions.assertTrue(cache.isRefreshAheadEnabled(), "Closing a service disabled refresh-ahead");
+            first.close();
+            Assertions.assertFalse(cache.isRefreshAheadEnabled());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testGetResultsFollowingCNamesAsync() throws Exception {
+        DNSQuestion question = new DNSQuestion("alias.cname.async.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                List<ResourceRecord> results = new ArrayList<>(
+                        local.getResultsFollowingCNamesAsync(question, 2).get(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(2, results.size());
+                Assertions.assertEquals(RecordType.CNAME, results.get(0).getRecordType());
+                Assertions.assertEquals("www.cname.async.test", results.get(0).getTextResult());
+                Assertions.assertEquals("10.0.0.1", results.get(1).getTextResult());
+
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                        () -> local.getResultsFollowingCNamesAsync(question, 0).get(5, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof DNSLookupService.CNameIndirectionLimitException);
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testGetResultsAsyncFailure() throws Exception {
+        DNSQuestion question = new DNSQuestion("bad.malformed.async.test", RecordType.A, RecordClass.IN);
+        try (StubServer server = new StubServer((query, count) -> {
+            // An NS record whose name is a compression pointer past the end of the message
+            DNSMessage response = answer(query);
+            response.setANCount(1);
+            byte[] header = response.getUsed();
+            byte[] record = {(byte) 0xC0, 12, 0, 2, 0, 1, 0, 0, 1, 0, 0, 2, (byte) 0xFF, (byte) 0xFF};
+            byte[] data = Arrays.copyOf(header, header.length + record.length);
+            System.arraycopy(record, 0, data, header.length, record.length);
+            return data;
+        })) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                        () -> local.getResultsAsync(question).get(5, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof DNSLookupService.LookupFailedException);
+                Assertions.assertEquals(question,
+                        ((DNSLookupService.LookupFailedException) e.getCause()).getQuestion());
+                Assertions.assertTrue(local.getResults(question).isEmpty());
+            } finally {
+                local.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSubmitLookupOnThreads() throws Exception {
+        try (StubServer server = new StubServer((query, count) -> answer(query).getUsed())) {
+            DNSLookupService local = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), server.getPort());
+            try {
+                List<DNSLookupService.ThreadMode> modes = new ArrayList<>();
+                modes.add(DNSLookupService.ThreadMode.PLATFORM);
+                if (DNSLookupService.isVirtualThreadSupported())
+                    modes.add(DNSLookupService.ThreadMode.VIRTUAL);
+                else
+                    Assertions.assertThrows(UnsupportedOperationException.class,
+                            () -> local.setThreadMode(DNSLookupService.ThreadMode.VIRTUAL));
+                for (DNSLookupService.ThreadMode mode : modes) {
+                    local.setThreadMode(mode);
+                    List<CompletableFuture<Collection<ResourceRecord>>> lookups = new ArrayList<>();
+                    for (int i = 0; i < 50; i++)
+                        lookups.add(local.submitLookup(new DNSQuestion("alias." + i + "." + mode + ".threads.test",
+                                RecordType.A, RecordClass.IN), 2));
+                    for (CompletableFuture<Collection<ResourceRecord>> lookup : lookups)
+                        Assertions.assertEquals(2, lookup.get(10, TimeUnit.SECONDS).size());
+                }
+                Assertions.assertEquals(modes.get(modes.size() - 1), local.getThreadMode());
+            } finally {
+                local.close();
+            }
+        }
+    }
+
 //    @Test
 //    public void testQuerying() throws UnknownHostException {
 //        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
@@ -0,0 +1,323 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmarks for the DNSMessage codec, run against the wire captures shipped with the DNSMessage project and
+ * against synthetic messages with a growing number of records. This is a plain main program rather than a JUnit test,
+ * since the numbers are only meaningful on a quiet machine:
+ *
+ * <pre>
+ *     java -cp out/production/DNSLookupService:out/test/DNSLookupService \
+ *         ca.ubc.cs.cs317.dnslookup.DNSMessageBenchmark [captureDirectory [nameFilter]]
+ * </pre>
+ *
+ * For each benchmark it reports the average time and the number of bytes allocated per operation, as measured by the
+ * per-thread allocation counter of the JVM. When a filter is given, only benchmarks whose name contains it are run.
+ */
+public class DNSMessageBenchmark {
+
+    private static final String[] RESPONSES = {"rnorm.bin", "rmit.bin", "rdropbox.bin"};
+    private static final String[] CAPTURES = {"qnorm.bin", "qmit.bin", "qdropbox.bin",
+            "rnorm.bin", "rmit.bin", "rdropbox.bin"};
+    private static final int[] SYNTHETIC_RECORD_COUNTS = {1, 16, 128, 1024};
+    private static final int WARMUP_ITERATIONS = 20_000;
+    private static final int ITERATIONS = 200_000;
+
+    private static String filter = "";
+    /** Written by benchmarks with their results, so that the JIT cannot discard the work being measured. */
+    static volatile Object sink;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "../DNSMessage");
+        if (args.length > 1) filter = args[1];
+        for (String file : RESPONSES) {
+            byte[] data = Files.readAllBytes(directory.resolve(file));
+            benchmarkNames(file, data);
+        }
+        for (String file : CAPTURES) {
+            byte[] data = Files.readAllBytes(directory.resolve(file));
+            benchmarkDecode("decode " + file, data, ITERATIONS);
+        }
+        byte[] response = Files.readAllBytes(directory.resolve("rmit.bin"));
+        benchmarkQueryCycle(response, false);
+        benchmarkQueryCycle(response, true);
+        DNSMessage referral = new DNSMessage(response, response.length);
+        benchmarkEncodeQuestion(referral.getQuestion(0));
+        benchmarkEncodeReferral(referral);
+        benchmarkGetUsed("getUsed rmit.bin", encode(referral.getQuestion(0), records(referral)), ITERATIONS);
+
+        for (int count : SYNTHETIC_RECORD_COUNTS) {
+            List<ResourceRecord> records = syntheticRecords(count);
+            DNSQuestion question = records.get(0).getQuestion();
+            int iterations = Math.max(1_000, ITERATIONS / count);
+            benchmarkEncode("encode " + count + " records (per record)", question, records, iterations);
+            DNSMessage message = encode(question, records);
+            benchmarkDecode("decode " + count + " records", message.getUsed(), iterations);
+            benchmarkGetUsed("getUsed " + count + " records", message, iterations);
+        }
+        benchmarkRetained(encode(new DNSQuestion("example.com", RecordType.NS, RecordClass.IN),
+                syntheticRecords(1024)).getUsed(), 100);
+    }
+
+    /**
+     * Measures the heap retained by decoded records, as a cache would hold them: the message is decoded the given
+     * number of times and all its records kept, and the heap in use after a full collection is compared to the heap
+     * in use before decoding.
+     */
+    private static void benchmarkRetained(byte[] data, int copies) {
+        String name = "retained heap (per record)";
+        if (!name.contains(filter))
+            return;
+        long before = usedHeap();
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            DNSMessage message = new DNSMessage(data, data.length);
+            int count = message.getANCount() + message.getNSCount() + message.getARCount();
+            message.getQuestion();
+            for (int j = 0; j < count; j++)
+                records.add(message.getRR());
+        }
+        long retained = usedHeap() - before;
+        sink = records;
+        System.out.printf("%-40s %10.1f B/record (%d records)%n", name, (double) retained / records.size(),
+                records.size());
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Decodes the whole message from its wire format: the header, every question and every record.
+     */
+    private static void benchmarkDecode(String name, byte[] data, int iterations) {
+        run(name, 1, iterations, () -> {
+            DNSMessage message = new DNSMessage(data, data.length);
+            Object last = null;
+            for (int i = 0; i < message.getQDCount(); i++)
+                last = message.getQuestion();
+            int records = message.getANCount() + message.getNSCount() + message.getARCount();
+            for (int i = 0; i < records; i++)
+                last = message.getRR();
+            sink = last;
+        });
+    }
+
+    /**
+     * Encodes a single question into a pooled message, as done for every query sent.
+     */
+    private static void benchmarkEncodeQuestion(DNSQuestion question) {
+        DNSMessagePool pool = new DNSMessagePool();
+        run("encode question", 1, ITERATIONS, () -> {
+            DNSMessage message = pool.acquire((short) 1);
+            message.addQuestion(question);
+            pool.release(message);
+        });
+    }
+
+    /**
+     * Copies the used part of an encoded message out of its buffer.
+     */
+    private static void benchmarkGetUsed(String name, DNSMessage message, int iterations) {
+        run(name, 1, iterations, () -> sink = message.getUsed());
+    }
+
+    /**
+     * Decodes every name in the message (question, owner names and NS/CNAME/MX targets), repeatedly.
+     */
+    private static void benchmarkNames(String file, byte[] data) {
+        DNSMessage message = new DNSMessage(data, data.length);
+        int[] offsets = nameOffsets(message);
+        run("getName " + file, offsets.length, ITERATIONS, () -> {
+            for (int offset : offsets) {
+                message.setPosition(offset);
+                message.getName();
+            }
+        });
+    }
+
+    /**
+     * Simulates the message handling of a sustained lookup loop: build a query, receive a response into a buffer and
+     * decode its header and question. With pooled set, messages come from a DNSMessagePool and are sent from their own
+     * buffer, as in DNSLookupService; otherwise every query and response gets fresh buffers and the query is copied out
+     * with getUsed(), as it was before the pool was introduced.
+     */
+    private static void benchmarkQueryCycle(byte[] response, boolean pooled) {
+        DNSMessagePool pool = new DNSMessagePool();
+        DNSQuestion question = new DNSQuestion("prep.ai.mit.edu", RecordType.A, RecordClass.IN);
+        run("query cycle " + (pooled ? "(pooled)" : "(allocating)"), 1, ITERATIONS, () -> {
+            DNSMessage query = pooled ? pool.acquire((short) 5644) : new DNSMessage((short) 5644);
+            query.addQuestion(question);
+            if (pooled) query.getEncoded();
+            else query.getUsed();
+            DNSMessage received;
+            if (pooled) {
+                received = pool.acquire((short) 0);
+                received.receiveBuffer().put(response);
+                received.received();
+            } else {
+                byte[] data = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+                System.arraycopy(response, 0, data, 0, response.length);
+                received = new DNSMessage(data, response.length);
+            }
+            if (received.getID() != query.getID() || !received.getQuestion().equals(question))
+                throw new AssertionError("Unexpected response");
+            if (pooled) {
+                pool.release(query);
+                pool.release(received);
+            }
+        });
+    }
+
+    /**
+     * Encodes all the records of a referral into a pooled message, measuring name compression and record encoding.
+     */
+    private static void benchmarkEncodeReferral(DNSMessage referral) {
+        benchmarkEncode("encode referral (per record)", referral.getQuestion(0), records(referral), ITERATIONS);
+    }
+
+    /**
+     * Encodes the question and the records into a pooled message large enough to hold them all.
+     */
+    private static void benchmarkEncode(String name, DNSQuestion question, List<ResourceRecord> records,
+                                        int iterations) {
+        DNSMessagePool pool = new DNSMessagePool(encode(question, records).getCapacity());
+        run(name, records.size(), iterations, () -> {
+            DNSMessage message = pool.acquire((short) 1);
+            message.addQuestion(question);
+            for (ResourceRecord record : records)
+                message.addResourceRecord(record, "nameserver");
+            pool.release(message);
+        });
+    }
+
+    /**
+     * Returns the authority records of a message.
+     */
+    private static List<ResourceRecord> records(DNSMessage message) {
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int i = 0; i < message.getNSCount(); i++)
+            records.add(message.getAuthority(i));
+        return records;
+    }
+
+    /**
+     * Builds a referral-like record set of the given size: NS records for a zone, followed by the A and AAAA records
+     * of the name servers, so that names share suffixes the way they do in real responses.
+     */
+    private static List<ResourceRecord> syntheticRecords(int count) {
+        List<ResourceRecord> records = new ArrayList<>();
+        DNSQuestion zone = new DNSQuestion("example.com", RecordType.NS, RecordClass.IN);
+        int servers = Math.max(1, count / 3);
+        try {
+            for (int i = 0; records.size() < count; i++) {
+                String server = "ns" + (i % servers) + ".example.net";
+                switch (i / servers) {
+                    case 0:
+                        records.add(new ResourceRecord(zone, 172800, server));
+                        break;
+                    case 1:
+                        records.add(new ResourceRecord(new DNSQuestion(server, RecordType.A, RecordClass.IN), 172800,
+                                InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i})));
+                        break;
+                    default:
+                        byte[] address = new byte[16];
+                        address[0] = 0x20;
+                        address[1] = 0x01;
+                        address[14] = (byte) (i >> 8);
+                        address[15] = (byte) i;
+                        records.add(new ResourceRecord(new DNSQuestion(server, RecordType.AAAA, RecordClass.IN),
+                                172800, InetAddress.getByAddress(address)));
+                }
+            }
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+        return records;
+    }
+
+    /**
+     * Encodes the question and records into a new message of sufficient capacity.
+     */
+    private static DNSMessage encode(DNSQuestion question, List<ResourceRecord> records) {
+        DNSMessage message = new DNSMessage((short) 1, 0xFFFF);
+        message.addQuestion(question);
+        for (ResourceRecord record : records)
+            message.addResourceRecord(record, "nameserver");
+        return message;
+    }
+
+    /**
+     * Returns the position of every name in the message, found by decoding it once.
+     */
+    private static int[] nameOffsets(DNSMessage message) {
+        List<Integer> offsets = new ArrayList<>();
+        message.setPosition(12);
+        for (int i = 0; i < message.getQDCount(); i++) {
+            offsets.add(message.getPosition());
+            message.getQuestion();
+        }
+        int records = message.getANCount() + message.getNSCount() + message.getARCount();
+        for (int i = 0; i < records; i++) {
+            int start = message.getPosition();
+            message.getName();
+            int rdata = message.getPosition() + 10; // type, class, TTL and RDATA length
+            message.setPosition(start);
+            ResourceRecord record = message.getRR();
+            offsets.add(start);
+            RecordType type = record.getRecordType();
+            if (type == RecordType.NS || type == RecordType.CNAME)
+                offsets.add(rdata);
+        }
+        return offsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Runs the operation a tenth of the given iterations (at least WARMUP_ITERATIONS operations in total) to warm up,
+     * then the given number of iterations while measuring, and prints the time and allocation per unit of work (each
+     * run of the operation counts as unitsPerRun units), as well as the number of garbage collections that happened
+     * while measuring. Does nothing if the name does not match the filter given on the command line.
+     */
+    static void run(String name, int unitsPerRun, int iterations, Runnable operation) {
+        if (!name.contains(filter))
+            return;
+        int warmup = Math.max(iterations / 10, WARMUP_ITERATIONS / unitsPerRun);
+        for (int i = 0; i < warmup; i++)
+            operation.run();
+        long thread = Thread.currentThread().getId();
+        long collectionsBefore = collections();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            operation.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        long collections = collections() - collectionsBefore;
+        double units = (double) iterations * unitsPerRun;
+        System.out.printf("%-40s %10.1f ns/op %10.1f B/op %6d GCs%n", name, elapsed / units, allocated / units,
+                collections);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+}
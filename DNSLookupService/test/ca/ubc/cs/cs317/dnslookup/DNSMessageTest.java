@@ -2,6 +2,9 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.InetAddress;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class DNSMessageTest {
@@ -60,4 +63,283 @@ public class DNSMessageTest {
         ResourceRecord replyRR = reply.getRR();
         assertEquals(rr, replyRR);
     }
+    @Test
+    public void testGetNameCompressed() {
+        DNSMessage request = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("norm.cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        request.addResourceRecord(new ResourceRecord(question, 3600, "ns1.cs.ubc.ca"), "answer");
+        request.addResourceRecord(new ResourceRecord(question, 3600, "ns2.ubc.ca"), "answer");
+        byte[] content = request.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals("ns1.cs.ubc.ca", reply.getRR().getTextResult());
+        ResourceRecord second = reply.getRR();
+        assertEquals("norm.cs.ubc.ca", second.getHostName());
+        assertEquals("ns2.ubc.ca", second.getTextResult());
+        assertEquals(content.length, reply.getPosition());
+    }
+    @Test
+    public void testGetNamePointerLoop() {
+        byte[] content = new byte[] {
+                0, 23, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                1, 'a', (byte) 0xc0, 12, // label "a" followed by a pointer back to itself
+                0, 1, 0, 1
+        };
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertThrows(DNSMessage.MalformedMessageException.class, reply::getName);
+    }
+    @Test
+    public void testNameLengthLimit() {
+        String longest = longName(253);
+        assertEquals(DNSMessage.MAX_NAME_LENGTH, DomainName.of(longest).wire().length);
+        assertThrows(IllegalArgumentException.class, () -> DomainName.of(longName(254)));
+
+        DNSMessage request = new DNSMessage((short)23);
+        request.addQuestion(new DNSQuestion(longest, RecordType.A, RecordClass.IN));
+        byte[] content = request.getUsed();
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals(longest, reply.getQuestion().getHostName());
+
+        // The same name with one more character in its last label, as a nameserver could send it
+        byte[] tooLong = new byte[content.length + 1];
+        System.arraycopy(content, 0, tooLong, 0, content.length - 5);
+        tooLong[12 + 3 * 64]++;
+        tooLong[content.length - 5] = 'x';
+        System.arraycopy(content, content.length - 5, tooLong, content.length - 4, 5);
+        DNSMessage tooLongReply = new DNSMessage(tooLong, tooLong.length);
+        assertThrows(DNSMessage.MalformedMessageException.class, tooLongReply::getQuestion);
+    }
+    private static String longName(int length) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            if (sb.length() > 0) sb.append('.');
+            for (int i = 0; i < 63 && sb.length() < length; i++)
+                sb.append('a');
+        }
+        return sb.toString();
+    }
+    @Test
+    public void testTruncatedRecord() {
+        DNSMessage request = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("norm.cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        request.addResourceRecord(new ResourceRecord(question, 3600, "ns1.cs.ubc.ca"), "answer");
+        byte[] content = request.getUsed();
+        // Cut in the middle of the TTL, before the data length
+        int length = 12 + DomainName.of("norm.cs.ubc.ca").wire().length + 6;
+
+        DNSMessage reply = new DNSMessage(content, length);
+        assertThrows(DNSMessage.MalformedMessageException.class, () -> reply.getAnswer(0));
+    }
+    @Test
+    public void testPooledMessageIsReset() {
+        DNSMessagePool pool = new DNSMessagePool();
+        DNSMessage first = pool.acquire((short)23);
+        first.setQR(true);
+        first.setRcode(3);
+        first.addQuestion(new DNSQuestion("norm.cs.ubc.ca", RecordType.A, RecordClass.IN));
+        pool.release(first);
+
+        DNSMessage second = pool.acquire((short)42);
+        assertSame(first, second);
+        assertEquals(42, second.getID());
+        assertFalse(second.getQR());
+        assertEquals(0, second.getRcode());
+        assertEquals(0, second.getQDCount());
+        assertEquals(12, second.getUsed().length);
+
+        // The compression map must not point into the previous message
+        DNSQuestion question = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        second.addQuestion(question);
+        byte[] content = second.getUsed();
+        assertEquals(question, new DNSMessage(content, content.length).getQuestion());
+    }
+    @Test
+    public void testOPTAndLargeMessage() throws Exception {
+        DNSMessage response = new DNSMessage((short)23, DNSMessage.MAX_EDNS_PAYLOAD_SIZE);
+        response.setQR(true);
+        for (int i = 0; i < 60; i++) {
+            DNSQuestion question = new DNSQuestion("host" + i + ".cs.ubc.ca", RecordType.A, RecordClass.IN);
+            response.addResourceRecord(new ResourceRecord(question, 3600,
+                    InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i})), "answer");
+        }
+        response.addOPT(4096);
+        byte[] content = response.getUsed();
+        assertTrue(content.length > DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        for (int i = 0; i < 60; i++)
+            assertEquals("10.0.0." + i, reply.getRR().getTextResult());
+        assertEquals(RecordType.OPT, reply.getRR().getRecordType());
+        assertEquals(4096, reply.getEDNSPayloadSize());
+    }
+    @Test
+    public void testRandomAccess() throws Exception {
+        DNSMessage response = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        DNSQuestion glue = new DNSQuestion("ns1.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        response.addQuestion(question);
+        response.addResourceRecord(new ResourceRecord(question, 3600,
+                InetAddress.getByName("142.103.6.6")), "answer");
+        response.addResourceRecord(new ResourceRecord(zone, 3600, "ns1.cs.ubc.ca"), "nameserver");
+        response.addResourceRecord(new ResourceRecord(zone, 3600, "ns2.cs.ubc.ca"), "nameserver");
+        response.addResourceRecord(new ResourceRecord(glue, 3600,
+                InetAddress.getByName("142.103.6.1")), "additional");
+        response.addOPT(1232);
+        byte[] content = response.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals(1, reply.getANCount());
+        assertEquals(2, reply.getNSCount());
+        assertEquals(2, reply.getARCount());
+        assertEquals(1232, reply.getEDNSPayloadSize());
+        assertEquals(RecordType.OPT, reply.getRRType(DNSMessage.ADDITIONAL, 1));
+        assertEquals("142.103.6.1", reply.getAdditional(0).getTextResult());
+        assertEquals("ns2.cs.ubc.ca", reply.getAuthority(1).getTextResult());
+        assertEquals("142.103.6.6", reply.getAnswer(0).getTextResult());
+        assertEquals(question, reply.getQuestion(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> reply.getAuthority(2));
+
+        // Random access leaves the position for sequential decoding alone
+        assertEquals(question, reply.getQuestion());
+        assertEquals("142.103.6.6", reply.getRR().getTextResult());
+    }
+    @Test
+    public void testCompressedReferralSize() throws Exception {
+        DNSMessage response = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("prep.ai.mit.edu", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("edu", RecordType.NS, RecordClass.IN);
+        response.addQuestion(question);
+        for (char c = 'a'; c <= 'm'; c++)
+            response.addResourceRecord(new ResourceRecord(zone, 172800, c + ".edu-servers.net"), "nameserver");
+        for (char c = 'a'; c <= 'm'; c++) {
+            DNSQuestion glue = new DNSQuestion(c + ".edu-servers.net", RecordType.A, RecordClass.IN);
+            response.addResourceRecord(new ResourceRecord(glue, 172800,
+                    InetAddress.getByAddress(new byte[] {(byte) 192, 5, 6, (byte) c})), "additional");
+        }
+        byte[] content = response.getUsed();
+        // Same size as the String-keyed encoder this replaced
+        assertEquals(464, content.length);
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals(question, reply.getQuestion(0));
+        assertEquals("m.edu-servers.net", reply.getAuthority(12).getTextResult());
+        assertEquals("m.edu-servers.net", reply.getAdditional(12).getHostName());
+    }
+    @Test
+    public void testTypedRecordData() {
+        DNSMessage request = new DNSMessage((short)23);
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN), 3600,
+                new RecordData.SOA("ns1.cs.ubc.ca", "hostmaster.cs.ubc.ca", 2024010101, 7200, 900, 1209600, 300));
+        ResourceRecord srv = new ResourceRecord(new DNSQuestion("_ldap._tcp.cs.ubc.ca", RecordType.SRV, RecordClass.IN),
+                3600, new RecordData.SRV(10, 60000, 389, "ldap.cs.ubc.ca"));
+        ResourceRecord txt = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.TXT, RecordClass.IN), 3600,
+                new RecordData.TXT(new byte[] {2, 'h', 'i', 0, 3, 'a', '=', 'b'}));
+        ResourceRecord ptr = new ResourceRecord(new DNSQuestion("1.0.0.127.in-addr.arpa", RecordType.PTR,
+                RecordClass.IN), 3600, "localhost");
+        ResourceRecord raw = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.OTHER, RecordClass.IN), 3600,
+                new RecordData.Raw(new byte[] {1, 2, (byte) 0xAB}));
+        request.addResourceRecord(soa, "answer");
+        request.addResourceRecord(srv, "answer");
+        request.addResourceRecord(txt, "answer");
+        request.addResourceRecord(ptr, "answer");
+        request.addResourceRecord(raw, "answer");
+        byte[] content = request.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals(5, reply.getANCount());
+        ResourceRecord replySOA = reply.getAnswer(0);
+        assertEquals(soa, replySOA);
+        assertEquals(300, ((RecordData.SOA) replySOA.getDataResult()).getMinimum());
+        ResourceRecord replySRV = reply.getAnswer(1);
+        assertEquals(srv, replySRV);
+        assertEquals(60000, ((RecordData.SRV) replySRV.getDataResult()).getWeight());
+        ResourceRecord replyTXT = reply.getAnswer(2);
+        assertEquals(txt, replyTXT);
+        assertArrayEquals(new String[] {"hi", "", "a=b"}, ((RecordData.TXT) replyTXT.getDataResult()).getStrings());
+        assertEquals(ptr, reply.getAnswer(3));
+        ResourceRecord replyRaw = reply.getAnswer(4);
+        assertEquals(raw, replyRaw);
+        assertEquals("0102ab", replyRaw.getTextResult());
+    }
+    @Test
+    public void testUnknownTypeCodesKept() {
+        DomainName name = DomainName.of("cs.ubc.ca");
+        ResourceRecord first = new ResourceRecord(new DNSQuestion(name, 99, 1), 3600,
+                new RecordData.Raw(new byte[] {1}));
+        ResourceRecord second = new ResourceRecord(new DNSQuestion(name, 65280, 254), 3600,
+                new RecordData.Raw(new byte[] {2}));
+        assertEquals(RecordType.OTHER, first.getRecordType());
+        assertNotEquals(first.getQuestion(), second.getQuestion());
+        DNSMessage request = new DNSMessage((short)23);
+        request.addResourceRecord(first, "answer");
+        request.addResourceRecord(second, "answer");
+        byte[] content = request.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        ResourceRecord replyFirst = reply.getAnswer(0);
+        ResourceRecord replySecond = reply.getAnswer(1);
+        assertEquals(first, replyFirst);
+        assertEquals(second, replySecond);
+        assertEquals(65280, replySecond.getQuestion().getTypeCode());
+        assertEquals(RecordClass.OTHER, replySecond.getRecordClass());
+        assertEquals(254, replySecond.getQuestion().getClassCode());
+
+        DNSMessage again = new DNSMessage((short)23);
+        again.addResourceRecord(replyFirst, "answer");
+        again.addResourceRecord(replySecond, "answer");
+        assertArrayEquals(content, again.getUsed());
+
+        DNSCache cache = new DNSCache();
+        cache.addResult(replyFirst);
+        cache.addResult(replySecond);
+        assertEquals(List.of(replyFirst), cache.getCachedResults(first.getQuestion(), false));
+        assertEquals(List.of(replySecond), cache.getCachedResults(second.getQuestion(), false));
+    }
+    @Test
+    public void testPackedAddresses() throws Exception {
+        DNSMessage request = new DNSMessage((short)23);
+        InetAddress v4 = InetAddress.getByName("142.103.6.5");
+        InetAddress v6 = InetAddress.getByName("2001:db8::8a2e:370:7334");
+        ResourceRecord a = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.A, RecordClass.IN), 3600, v4);
+        ResourceRecord aaaa = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.AAAA, RecordClass.IN), 3600,
+                v6);
+        request.addResourceRecord(a, "answer");
+        request.addResourceRecord(aaaa, "answer");
+        byte[] content = request.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        ResourceRecord replyA = reply.getAnswer(0);
+        ResourceRecord replyAAAA = reply.getAnswer(1);
+        assertEquals(a, replyA);
+        assertEquals(a.hashCode(), replyA.hashCode());
+        assertEquals(v4, replyA.getInetResult());
+        assertEquals("142.103.6.5", replyA.getTextResult());
+        assertEquals(aaaa, replyAAAA);
+        assertEquals(v6, replyAAAA.getInetResult());
+        assertEquals(v6.getHostAddress(), replyAAAA.getTextResult());
+    }
+    @Test
+    public void testDomainNameInterned() {
+        DomainName name = DomainName.of("WWW.CS.UBC.CA.");
+        assertSame(name, DomainName.of("www.cs.ubc.ca"));
+        assertEquals("www.cs.ubc.ca", name.toString());
+        assertEquals(new DNSQuestion("www.CS.ubc.ca", RecordType.A, RecordClass.IN),
+                new DNSQuestion(name, RecordType.A, RecordClass.IN));
+        assertThrows(IllegalArgumentException.class, () -> DomainName.of("www..ubc.ca"));
+
+        // Names are decoded lower-cased, into the same interned object
+        byte[] content = {0, 23, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, 'W', 'w', 'W', 2, 'C', 's', 3, 'u', 'B', 'c', 2, 'c', 'A', 0, 0, 1, 0, 1};
+        DNSMessage message = new DNSMessage(content, content.length);
+        DNSQuestion question = message.getQuestion();
+        assertSame(name, question.getDomainName());
+
+        DNSMessage request = new DNSMessage((short)23);
+        request.addQuestion(question);
+        request.addName(DomainName.ROOT);
+        byte[] expected = {0, 23, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+                3, 'w', 'w', 'w', 2, 'c', 's', 3, 'u', 'b', 'c', 2, 'c', 'a', 0, 0, 1, 0, 1, 0};
+        assertArrayEquals(expected, request.getUsed());
+    }
 }
@@ -0,0 +1,121 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Compares the ways of running many lookups at once with DNSLookupService. Like DNSCacheBenchmark, this is a plain
+ * main program:
+ *
+ * <pre>
+ *     java -cp out/production/DNSLookupService:out/test/DNSLookupService \
+ *         ca.ubc.cs.cs317.dnslookup.LookupThreadBenchmark [delay in milliseconds]
+ * </pre>
+ *
+ * A local nameserver answers every A query after a delay (20 ms by default), as a remote one would. 100, 1000 and
+ * 10000 lookups of names that are not cached are started at once, each on a platform thread, each on a virtual thread
+ * (with Java 21 or later), and with getResultsFollowingCNamesAsync, which needs no thread per lookup. The time until
+ * all of them are done, and the peak number of platform threads started for them, are reported.
+ */
+public class LookupThreadBenchmark {
+
+    private static final int[] LOOKUPS = {100, 1000, 10000};
+    private static int run;
+
+    public static void main(String[] args) throws Exception {
+        long delay = args.length > 0 ? Long.parseLong(args[0]) : 20;
+        DatagramChannel server = DatagramChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setOption(StandardSocketOptions.SO_RCVBUF, QueryEngine.RECEIVE_BUFFER_SIZE);
+        Thread nameserver = new Thread(() -> serve(server, delay), "stub-nameserver");
+        nameserver.setDaemon(true);
+        nameserver.start();
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+        for (int lookups : LOOKUPS) {
+            DNSLookupService service = new DNSLookupService("127.0.0.1", new DNSLookupCUI(), port);
+            try {
+                // Before the thread pools exist, so that their threads do not count
+                run("async", lookups, question -> service.getResultsFollowingCNamesAsync(question, 1));
+                service.setThreadMode(DNSLookupService.ThreadMode.PLATFORM);
+                run("platform threads", lookups, question -> service.submitLookup(question, 1));
+                if (DNSLookupService.isVirtualThreadSupported()) {
+                    service.setThreadMode(DNSLookupService.ThreadMode.VIRTUAL);
+                    run("virtual threads", lookups, question -> service.submitLookup(question, 1));
+                }
+            } finally {
+                service.close();
+            }
+        }
+        if (!DNSLookupService.isVirtualThreadSupported())
+            System.out.println("(virtual threads are not supported by this JVM)");
+        server.close();
+    }
+
+    /**
+     * Answers each query with an A record, after the delay.
+     */
+    private static void serve(DatagramChannel server, long delay) {
+        ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stub-replies");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (true) {
+                ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_EDNS_PAYLOAD_SIZE);
+                SocketAddress client = server.receive(buffer);
+                DNSMessage query = new DNSMessage(buffer.array(), buffer.position());
+                DNSQuestion question = query.getQuestion(0);
+                DNSMessage response = new DNSMessage((short) query.getID());
+                response.setQR(true);
+                response.setAA(true);
+                response.addQuestion(question);
+                response.addResourceRecord(new ResourceRecord(question, 300, InetAddress.getByName("10.0.0.1")),
+                        "answer");
+                replies.schedule(() -> {
+                    try {
+                        server.send(response.getEncoded(), client);
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            replies.shutdownNow();
+        }
+    }
+
+    private static void run(String mode, int lookups,
+                            Function<DNSQuestion, CompletableFuture<Collection<ResourceRecord>>> lookup)
+            throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int before = threads.getThreadCount();
+        run++;
+        long begin = System.nanoTime();
+        List<CompletableFuture<Collection<ResourceRecord>>> results = new ArrayList<>();
+        for (int i = 0; i < lookups; i++)
+            results.add(lookup.apply(new DNSQuestion("host" + i + ".run" + run + ".bench.test", RecordType.A,
+                    RecordClass.IN)));
+        int missing = 0;
+        for (CompletableFuture<Collection<ResourceRecord>> result : results)
+            if (result.get(60, TimeUnit.SECONDS).isEmpty())
+                missing++;
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%-17s %6d lookups %8.0f ms %10.0f lookups/s %6d more threads (%d unanswered)%n", mode,
+                lookups, elapsed * 1000, lookups / elapsed, threads.getPeakThreadCount() - before, missing);
+    }
+}
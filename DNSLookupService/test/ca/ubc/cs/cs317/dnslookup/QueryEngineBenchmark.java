@@ -0,0 +1,98 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmark for QueryEngine. Like DNSCacheBenchmark, this is a plain main program:
+ *
+ * <pre>
+ *     java -cp out/production/DNSLookupService:out/test/DNSLookupService \
+ *         ca.ubc.cs.cs317.dnslookup.QueryEngineBenchmark [seconds]
+ * </pre>
+ *
+ * A single thread sends queries through one engine to a local server that echoes each query back as its response,
+ * keeping up to a given number of queries in flight, for 1, 100 and 1000 queries in flight. With a single query in
+ * flight, this is the throughput of the previous design, where a lookup service waited for each response before
+ * sending the next query.
+ */
+public class QueryEngineBenchmark {
+
+    private static final int[] IN_FLIGHT = {1, 100, 1000};
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+        DatagramChannel server = DatagramChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setOption(StandardSocketOptions.SO_RCVBUF, QueryEngine.RECEIVE_BUFFER_SIZE);
+        Thread echo = new Thread(() -> echo(server), "echo-server");
+        echo.setDaemon(true);
+        echo.start();
+
+        for (int inFlight : IN_FLIGHT) {
+            try (QueryEngine engine = new QueryEngine(((InetSocketAddress) server.getLocalAddress()).getPort())) {
+                run(engine, inFlight, seconds);
+            }
+        }
+        server.close();
+    }
+
+    private static void echo(DatagramChannel server) {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_EDNS_PAYLOAD_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress client = server.receive(buffer);
+                buffer.flip();
+                buffer.put(2, (byte) (buffer.get(2) | 0x80));
+                server.send(buffer, client);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private static void run(QueryEngine engine, int inFlight, long seconds) throws InterruptedException {
+        DNSQuestion[] questions = new DNSQuestion[1000];
+        for (int i = 0; i < questions.length; i++)
+            questions[i] = new DNSQuestion("host" + i + ".example.com", RecordType.A, RecordClass.IN);
+        DNSMessagePool pool = new DNSMessagePool();
+        Semaphore permits = new Semaphore(inFlight);
+        LongAdder answered = new LongAdder();
+        LongAdder lost = new LongAdder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long warmup = System.nanoTime() + 500_000_000L;
+        long begin = 0;
+        long deadline = warmup + seconds * 1_000_000_000L;
+        for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+            if (begin == 0 && now >= warmup) {
+                begin = now;
+                answered.reset();
+                lost.reset();
+            }
+            permits.acquire();
+            DNSQuestion question = questions[random.nextInt(questions.length)];
+            DNSMessage query = pool.acquire((short) random.nextInt());
+            query.addQuestion(question);
+            engine.query(question, query, InetAddress.getLoopbackAddress(), 1000, 1, () -> { })
+                    .whenComplete((response, failure) -> {
+                        (failure == null ? answered : lost).increment();
+                        engine.release(response);
+                        pool.release(query);
+                        permits.release();
+                    });
+        }
+        permits.acquire(inFlight); // let the last queries finish
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%5d in flight %12.0f lookups/s (%d timed out)%n", inFlight, answered.sum() / elapsed,
+                lost.sum());
+    }
+}
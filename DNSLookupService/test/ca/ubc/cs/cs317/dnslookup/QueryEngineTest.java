@@ -0,0 +1,169 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryEngineTest {
+
+    private static final int QUERIES = 200;
+
+    private DatagramSocket server;
+    private QueryEngine engine;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger received = new AtomicInteger();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        engine = new QueryEngine(server.getLocalPort());
+    }
+
+    @AfterEach
+    public void stopServer() {
+        engine.close();
+        server.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers queries from a local server: reads batch queries at a time, counting them, and answers each batch in
+     * reverse order, echoing each query back as the response (with QR set). Each response is preceded by one for the
+     * same transaction ID but another question, which must be ignored.
+     */
+    private void serve(int batch, boolean dropFirst) {
+        executor.submit(() -> {
+            boolean drop = dropFirst;
+            while (!server.isClosed()) {
+                List<DatagramPacket> packets = new ArrayList<>();
+                for (int i = 0; i < batch; i++) {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    server.receive(packet);
+                    received.incrementAndGet();
+                    packets.add(packet);
+                }
+                if (drop) {
+                    drop = false;
+                    continue;
+                }
+                for (int i = packets.size() - 1; i >= 0; i--) {
+                    DatagramPacket packet = packets.get(i);
+                    DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                    DNSMessage other = query(query.getID(), "other.ubc.ca");
+                    other.setQR(true);
+                    byte[] data = other.getUsed();
+                    server.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                    packet.getData()[2] |= (byte) 0x80;
+                    server.send(packet);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static DNSMessage query(int id, String name) {
+        DNSMessage query = new DNSMessage((short) id);
+        query.addQuestion(new DNSQuestion(name, RecordType.A, RecordClass.IN));
+        return query;
+    }
+
+    @Test
+    public void testManyQueriesInFlight() throws Exception {
+        serve(QUERIES, false);
+        List<CompletableFuture<DNSMessage>> responses = new ArrayList<>();
+        List<DNSMessage> queries = new ArrayList<>();
+        for (int i = 0; i < QUERIES; i++) {
+            DNSMessage query = query(1000 + i, "host" + i + ".ubc.ca");
+            queries.add(query);
+            responses.add(engine.query(query.getQuestion(0), query, InetAddress.getLoopbackAddress(), 2000, 1,
+                    () -> { }));
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            DNSMessage response = responses.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(queries.get(i).getID(), response.getID());
+            assertEquals(queries.get(i).getQuestion(0), response.getQuestion(0));
+            engine.release(response);
+        }
+        assertEquals(QUERIES, received.get());
+        assertEquals(0, engine.getInFlightCount());
+    }
+
+    @Test
+    public void testRuntDatagramIsDropped() throws Exception {
+        executor.submit(() -> {
+            while (!server.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                server.receive(packet);
+                // Datagrams too short for a header come first, then the response
+                server.send(new DatagramPacket(new byte[4], 4, packet.getSocketAddress()));
+                server.send(new DatagramPacket(new byte[0], 0, packet.getSocketAddress()));
+                packet.getData()[2] |= (byte) 0x80;
+                server.send(packet);
+            }
+            return null;
+        });
+        for (int i = 0; i < 2; i++) {
+            DNSMessage query = query(1234 + i, "runt.ubc.ca");
+            DNSMessage response = engine.query(query.getQuestion(0), query, InetAddress.getLoopbackAddress(), 2000,
+                    1, () -> { }).get(5, TimeUnit.SECONDS);
+            assertEquals(1234 + i, response.getID());
+            engine.release(response);
+        }
+    }
+
+    @Test
+    public void testRetransmitsUntilAnswered() throws Exception {
+        serve(1, true);
+        AtomicInteger sent = new AtomicInteger();
+        DNSMessage query = query(1234, "a.ubc.ca");
+        DNSMessage response = engine.query(query.getQuestion(0), query, InetAddress.getLoopbackAddress(), 100, 3,
+                sent::incrementAndGet).get(5, TimeUnit.SECONDS);
+        assertEquals(1234, response.getID());
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        DNSMessage query = query(1234, "a.ubc.ca");
+        CompletableFuture<DNSMessage> response = engine.query(query.getQuestion(0), query,
+                InetAddress.getLoopbackAddress(), 50, 3, sent::incrementAndGet);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+        assertEquals(3, sent.get());
+        assertEquals(0, engine.getInFlightCount());
+    }
+
+    @Test
+    public void testSameIdGetsNewId() {
+        DNSMessage first = query(1234, "a.ubc.ca");
+        DNSMessage second = query(1234, "a.ubc.ca");
+        engine.query(first.getQuestion(0), first, InetAddress.getLoopbackAddress(), 2000, 1, () -> { });
+        engine.query(second.getQuestion(0), second, InetAddress.getLoopbackAddress(), 2000, 1, () -> { });
+        assertEquals(2, engine.getInFlightCount());
+        assertNotEquals(first.getID(), second.getID());
+    }
+
+    @Test
+    public void testCloseFailsQueriesInFlight() throws Exception {
+        DNSMessage query = query(1234, "a.ubc.ca");
+        CompletableFuture<DNSMessage> response = engine.query(query.getQuestion(0), query,
+                InetAddress.getLoopbackAddress(), 2000, 1, () -> { });
+        engine.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof AsynchronousCloseException);
+    }
+}
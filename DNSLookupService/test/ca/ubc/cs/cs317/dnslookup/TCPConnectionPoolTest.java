@@ -0,0 +1,114 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TCPConnectionPoolTest {
+
+    private ServerSocket server;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile long replyDelay; // in milliseconds
+
+    /**
+     * Starts a local server that reads two framed queries at a time and answers them in reverse order, after
+     * replyDelay, echoing each query back as the response (with QR set).
+     */
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(() -> {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                accepted.incrementAndGet();
+                executor.submit(() -> serve(socket));
+            }
+            return null;
+        });
+    }
+
+    private Void serve(Socket socket) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        while (true) {
+            byte[] first = readFrame(in);
+            byte[] second = readFrame(in);
+            Thread.sleep(replyDelay);
+            writeFrame(out, second);
+            writeFrame(out, first);
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        data[2] |= (byte) 0x80;
+        return data;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPipelinedQueriesShareOneConnection() throws Exception {
+        TCPConnectionPool pool = new TCPConnectionPool(server.getLocalPort());
+        InetAddress address = InetAddress.getLoopbackAddress();
+        Future<DNSMessage> first = executor.submit(() -> pool.query(address, query(1111, "a.ubc.ca"), 2000));
+        Future<DNSMessage> second = executor.submit(() -> pool.query(address, query(2222, "b.ubc.ca"), 2000));
+
+        DNSMessage firstResponse = first.get(5, TimeUnit.SECONDS);
+        DNSMessage secondResponse = second.get(5, TimeUnit.SECONDS);
+        assertEquals(1111, firstResponse.getID());
+        assertEquals("a.ubc.ca", firstResponse.getQuestion().getHostName());
+        assertEquals(2222, secondResponse.getID());
+        assertEquals("b.ubc.ca", secondResponse.getQuestion().getHostName());
+        assertEquals(1, accepted.get());
+        pool.close();
+    }
+
+    @Test
+    public void testLateResponseAfterTimeoutIsDropped() throws Exception {
+        TCPConnectionPool pool = new TCPConnectionPool(server.getLocalPort());
+        InetAddress address = InetAddress.getLoopbackAddress();
+        replyDelay = 500;
+        // The first query reads the connection, so the second one times out waiting for its turn, and its response
+        // is then read by the first query
+        Future<DNSMessage> first = executor.submit(() -> pool.query(address, query(1111, "a.ubc.ca"), 3000));
+        Thread.sleep(100);
+        Future<DNSMessage> second = executor.submit(() -> pool.query(address, query(2222, "b.ubc.ca"), 200));
+
+        ExecutionException timeout = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        assertTrue(timeout.getCause() instanceof SocketTimeoutException);
+        assertEquals(1111, first.get(5, TimeUnit.SECONDS).getID());
+        assertEquals(0, pool.getUnclaimedResponseCount());
+        pool.close();
+    }
+
+    private static DNSMessage query(int id, String name) {
+        DNSMessage message = new DNSMessage((short) id);
+        message.addQuestion(new DNSQuestion(name, RecordType.A, RecordClass.IN));
+        return message;
+    }
+}